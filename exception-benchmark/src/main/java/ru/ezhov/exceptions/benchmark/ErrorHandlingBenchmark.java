@@ -0,0 +1,383 @@
+package ru.ezhov.exceptions.benchmark;
+
+import arrow.core.Either;
+import io.vavr.control.Try;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сколько стоит каждый способ сообщить об ошибке хранилища из презентации.
+ * <p>
+ * 1. Непроверяемое исключение, в которое обёрнута причина (ch2 App2 - App4)
+ * 2. Проверяемые BookRepositoryException / BookServiceException (ch2 App5 - ch4 App1)
+ * 3. ClientException с сообщением для пользователя (ch3 App3)
+ * 4. Try из vavr (ch6 App1)
+ * 5. Either из Arrow (ch6 App2.kt)
+ * <p>
+ * В каждом стиле есть хранилище и сервис, а бенчмарк играет роль уровня представления:
+ * получает результат и на ошибке берёт сообщение, как это делает main в примерах.
+ * <p>
+ * Параметры:
+ * depth - глубина стека над сервисом, от неё зависит цена fillInStackTrace;
+ * failureRatio - доля вызовов, на которых основное хранилище падает (0 - только успешный путь, 1 - только отказ).
+ * <p>
+ * Запуск с замером аллокаций:
+ * <pre>
+ * java -jar exception-benchmark/target/benchmarks.jar ErrorHandlingBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ErrorHandlingBenchmark {
+    private static final List<String> BOOKS = Collections.unmodifiableList(Arrays.asList("Book 1", "Book 2"));
+    private static final int PATTERN_SIZE = 1024;
+
+    @Param({"0", "16", "128"})
+    public int depth;
+
+    @Param({"0.0", "0.01", "0.5", "1.0"})
+    public double failureRatio;
+
+    private boolean[] failures;
+    private int call;
+
+    private final Unchecked.BookService unchecked = new Unchecked.BookService();
+    private final Checked.BookService checked = new Checked.BookService();
+    private final Client.BookService client = new Client.BookService();
+    private final VavrTry.BookService vavr = new VavrTry.BookService();
+    private final ArrowEither.BookService arrow = new ArrowEither.BookService();
+
+    /**
+     * Порядок отказов заранее перемешан с фиксированным зерном, чтобы все стили получали одну и ту же последовательность.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        failures = new boolean[PATTERN_SIZE];
+        int failed = (int) Math.round(failureRatio * PATTERN_SIZE);
+        for (int i = 0; i < failed; i++) {
+            failures[i] = true;
+        }
+        Random random = new Random(42);
+        for (int i = PATTERN_SIZE - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            boolean tmp = failures[i];
+            failures[i] = failures[j];
+            failures[j] = tmp;
+        }
+    }
+
+    @Benchmark
+    public Object uncheckedWrapping() {
+        boolean fail = nextFailure();
+        return deep(depth, () -> {
+            try {
+                return unchecked.all(fail);
+            } catch (Exception ex) {
+                return ex.getMessage();
+            }
+        });
+    }
+
+    @Benchmark
+    public Object checkedExceptions() {
+        boolean fail = nextFailure();
+        return deep(depth, () -> {
+            try {
+                return checked.all(fail);
+            } catch (Checked.BookServiceException ex) {
+                return ex.getMessage();
+            }
+        });
+    }
+
+    @Benchmark
+    public Object clientException() {
+        boolean fail = nextFailure();
+        return deep(depth, () -> {
+            try {
+                return client.all(fail);
+            } catch (Client.BookServiceException ex) {
+                return ex.getClientMessage();
+            }
+        });
+    }
+
+    @Benchmark
+    public Object vavrTry() {
+        boolean fail = nextFailure();
+        return deep(depth, () -> {
+            Try<List<String>> all = vavr.all(fail);
+            return all.isSuccess() ? all.get() : all.getCause().getMessage();
+        });
+    }
+
+    @Benchmark
+    public Object arrowEither() {
+        boolean fail = nextFailure();
+        return deep(depth, () -> {
+            Either<Exception, List<String>> all = arrow.all(fail);
+            if (all instanceof Either.Right) {
+                return ArrowEither.rightValue(all);
+            }
+            return ArrowEither.leftValue(all).getMessage();
+        });
+    }
+
+    private boolean nextFailure() {
+        return failures[call++ & (PATTERN_SIZE - 1)];
+    }
+
+    private static Object deep(int depth, Presentation presentation) {
+        if (depth == 0) {
+            return presentation.show();
+        }
+        return deep(depth - 1, presentation);
+    }
+
+    interface Presentation {
+        Object show();
+    }
+
+    /**
+     * Упавшее хранилище каждый раз создаёт свою причину, как это делает JDBC драйвер.
+     */
+    private static SQLException connectionRefused() {
+        return new SQLException("Connection refused");
+    }
+
+    static final class Unchecked {
+        static class BookRepository {
+            List<String> all(boolean fail) {
+                if (fail) {
+                    throw new RuntimeException("Error when get books", connectionRefused());
+                }
+                return BOOKS;
+            }
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository = new BookRepository();
+            private final BookRepository secondaryBookRepository = new BookRepository();
+
+            /**
+             * Второе хранилище тоже падает, чтобы путь отказа доходил до уровня представления во всех стилях.
+             */
+            List<String> all(boolean fail) {
+                try {
+                    return primaryBookRepository.all(fail);
+                } catch (Exception ex) {
+                    return secondaryBookRepository.all(fail);
+                }
+            }
+        }
+    }
+
+    static final class Checked {
+        static class BookRepositoryException extends Exception {
+            BookRepositoryException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        static class BookServiceException extends Exception {
+            BookServiceException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        static class BookRepository {
+            List<String> all(boolean fail) throws BookRepositoryException {
+                if (fail) {
+                    throw new BookRepositoryException("Error when get books", connectionRefused());
+                }
+                return BOOKS;
+            }
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository = new BookRepository();
+            private final BookRepository secondaryBookRepository = new BookRepository();
+
+            List<String> all(boolean fail) throws BookServiceException {
+                try {
+                    try {
+                        return primaryBookRepository.all(fail);
+                    } catch (BookRepositoryException ex) {
+                        return secondaryBookRepository.all(fail);
+                    }
+                } catch (BookRepositoryException ex) {
+                    throw new BookServiceException("Error when get books", ex);
+                }
+            }
+        }
+    }
+
+    static final class Client {
+        static class ClientException extends Exception {
+            private final String clientMessage;
+
+            ClientException(String message, String clientMessage, Throwable cause) {
+                super(message, cause);
+                this.clientMessage = clientMessage;
+            }
+
+            String getClientMessage() {
+                return clientMessage;
+            }
+        }
+
+        static class BookRepositoryException extends ClientException {
+            BookRepositoryException(String message, String clientMessage, Throwable cause) {
+                super(message, clientMessage, cause);
+            }
+        }
+
+        static class BookServiceException extends ClientException {
+            BookServiceException(String message, String clientMessage, Throwable cause) {
+                super(message, clientMessage, cause);
+            }
+        }
+
+        static class BookRepository {
+            List<String> all(boolean fail) throws BookRepositoryException {
+                if (fail) {
+                    throw new BookRepositoryException(
+                            "Error when get books",
+                            "Error when get books, please try later",
+                            connectionRefused()
+                    );
+                }
+                return BOOKS;
+            }
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository = new BookRepository();
+            private final BookRepository secondaryBookRepository = new BookRepository();
+
+            List<String> all(boolean fail) throws BookServiceException {
+                try {
+                    try {
+                        return primaryBookRepository.all(fail);
+                    } catch (BookRepositoryException ex) {
+                        return secondaryBookRepository.all(fail);
+                    }
+                } catch (BookRepositoryException ex) {
+                    throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+                }
+            }
+        }
+    }
+
+    static final class VavrTry {
+        static class BookRepository {
+            Try<List<String>> all(boolean fail) {
+                return Try.ofSupplier(() -> {
+                    if (fail) {
+                        throw new RuntimeException(connectionRefused());
+                    }
+                    return BOOKS;
+                });
+            }
+        }
+
+        /**
+         * В ch6 App1 onFailure не подменяет результат, здесь второе хранилище вызывается через orElse,
+         * чтобы работа была сравнима с остальными стилями.
+         */
+        static class BookService {
+            private final BookRepository primaryBookRepository = new BookRepository();
+            private final BookRepository secondaryBookRepository = new BookRepository();
+
+            Try<List<String>> all(boolean fail) {
+                return primaryBookRepository.all(fail)
+                        .orElse(() -> secondaryBookRepository.all(fail));
+            }
+        }
+    }
+
+    static final class ArrowEither {
+        static class BookRepositoryException extends Exception {
+            BookRepositoryException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        static class BookServiceException extends Exception {
+            BookServiceException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        /**
+         * Either.Left и Either.Right из Kotlin видны в Java как наследники Either без параметров типа,
+         * поэтому непроверяемые приведения собраны в этих четырёх методах.
+         */
+        @SuppressWarnings("unchecked")
+        static <E, T> Either<E, T> left(E error) {
+            return (Either<E, T>) new Either.Left<>(error);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E, T> Either<E, T> right(T value) {
+            return (Either<E, T>) new Either.Right<>(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E> E leftValue(Either<E, ?> either) {
+            return ((Either.Left<E>) either).getValue();
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T> T rightValue(Either<?, T> either) {
+            return ((Either.Right<T>) either).getValue();
+        }
+
+        static class BookRepository {
+            Either<BookRepositoryException, List<String>> all(boolean fail) {
+                if (fail) {
+                    return left(new BookRepositoryException("Error when get books", connectionRefused()));
+                }
+                return right(BOOKS);
+            }
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository = new BookRepository();
+            private final BookRepository secondaryBookRepository = new BookRepository();
+
+            Either<Exception, List<String>> all(boolean fail) {
+                Either<BookRepositoryException, List<String>> primary = primaryBookRepository.all(fail);
+                if (primary instanceof Either.Right) {
+                    return right(rightValue(primary));
+                }
+                Either<BookRepositoryException, List<String>> secondary = secondaryBookRepository.all(fail);
+                if (secondary instanceof Either.Right) {
+                    return right(rightValue(secondary));
+                }
+                return left(new BookServiceException("Error from service when get books", leftValue(secondary)));
+            }
+        }
+    }
+}
@@ -0,0 +1,565 @@
+package ru.ezhov.exceptions.benchmark;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный стенд для переключения BookService на второе хранилище.
+ * <p>
+ * Микробенчмарки показывают цену одного исключения, но не показывают, как ведёт себя сервис
+ * под длительной конкурентной нагрузкой, когда основное хранилище тормозит, падает или "мигает".
+ * <p>
+ * Стенд состоит из:
+ * 1. FaultInjectingBookRepository - декоратор хранилища, который добавляет задержки, ошибки, зависания и мигание
+ * 2. Driver - генератор нагрузки в закрытом цикле (N потоков, запрос за запросом)
+ * или в открытом цикле (запросы приходят с фиксированной частотой, независимо от ответов)
+ * 3. LatencyHistogram - гистограмма задержек в духе HdrHistogram и отчёт с p50/p99/p999,
+ * пропускной способностью и долей переключений на второе хранилище
+ * <p>
+ * Всё работает без сети: БД и JSON заменены хранилищами в памяти.
+ * <p>
+ * Запуск:
+ * <pre>
+ * java -cp exception-benchmark/target/benchmarks.jar ru.ezhov.exceptions.benchmark.FailoverLoadHarness [секунд на сценарий]
+ * </pre>
+ */
+public class FailoverLoadHarness {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    static class ClientException extends Exception {
+        private final String clientMessage;
+
+        ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    static class BookRepositoryException extends ClientException {
+        BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    static class BookServiceException extends ClientException {
+        BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Duration duration = Duration.ofSeconds(args.length > 0 ? Long.parseLong(args[0]) : 3);
+        Map<String, String> books = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            books.put(String.valueOf(i), "Book " + i);
+        }
+
+        List<Scenario> scenarios = Arrays.asList(
+                new Scenario("healthy", Fault.latency(Latency.exponential(0.5))),
+                new Scenario("errors 20%", Fault.latency(Latency.exponential(0.5)), Fault.errors(0.2)),
+                new Scenario("slow tail", Fault.latency(Latency.bimodal(0.5, 50, 0.02))),
+                new Scenario("hangs 1%", Fault.latency(Latency.exponential(0.5)), Fault.hangs(0.01, Duration.ofMillis(500))),
+                new Scenario("flapping", Fault.latency(Latency.exponential(0.5)),
+                        Fault.flapping(Duration.ofMillis(300), Duration.ofMillis(200)))
+        );
+
+        System.out.println(Report.header());
+        for (Scenario scenario : scenarios) {
+            System.out.println(run(scenario, books, Driver.closed(32, duration)));
+            System.out.println(run(scenario, books, Driver.open(2_000, 64, duration)));
+        }
+    }
+
+    private static Report run(Scenario scenario, Map<String, String> books, Driver driver) throws InterruptedException {
+        BookRepository primary = new FaultInjectingBookRepository(
+                new InMemoryBookRepository("db", books), scenario.faults);
+        CountingBookRepository secondary = new CountingBookRepository(
+                new FaultInjectingBookRepository(
+                        new InMemoryBookRepository("json", books),
+                        Fault.latency(Latency.exponential(2))
+                ));
+        BookService service = new BookService(primary, secondary);
+        return driver.run(scenario.name, service, secondary);
+    }
+
+    /**
+     * BookService из ch4 App1 без изменений.
+     */
+    static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    static class Scenario {
+        private final String name;
+        private final Fault[] faults;
+
+        Scenario(String name, Fault... faults) {
+            this.name = name;
+            this.faults = faults;
+        }
+    }
+
+    /**
+     * Неисправность, которую декоратор применяет перед вызовом хранилища.
+     */
+    interface Fault {
+        void apply(String operation) throws BookRepositoryException;
+
+        static Fault latency(Latency latency) {
+            return operation -> sleep(latency.nextNanos(), operation);
+        }
+
+        /**
+         * Ошибка создаётся так же, как в DbBookRepository: SQLException, обёрнутый в BookRepositoryException.
+         */
+        static Fault errors(double rate) {
+            return operation -> {
+                if (ThreadLocalRandom.current().nextDouble() < rate) {
+                    throw new BookRepositoryException(
+                            "Error when " + operation,
+                            "Error when get books, please try later",
+                            new SQLException("Injected failure")
+                    );
+                }
+            };
+        }
+
+        static Fault hangs(double rate, Duration hang) {
+            long nanos = hang.toNanos();
+            return operation -> {
+                if (ThreadLocalRandom.current().nextDouble() < rate) {
+                    sleep(nanos, operation);
+                }
+            };
+        }
+
+        /**
+         * Хранилище попеременно работает up и лежит down.
+         */
+        static Fault flapping(Duration up, Duration down) {
+            long upNanos = up.toNanos();
+            long period = upNanos + down.toNanos();
+            long start = System.nanoTime();
+            Fault failure = errors(1);
+            return operation -> {
+                if ((System.nanoTime() - start) % period >= upNanos) {
+                    failure.apply(operation);
+                }
+            };
+        }
+
+        private static void sleep(long nanos, String operation) throws BookRepositoryException {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookRepositoryException("Interrupted when " + operation, "Error when get books, please try later", e);
+            }
+        }
+    }
+
+    /**
+     * Распределения задержки в миллисекундах.
+     */
+    interface Latency {
+        long nextNanos();
+
+        static Latency fixed(double millis) {
+            long nanos = (long) (millis * 1_000_000);
+            return () -> nanos;
+        }
+
+        static Latency exponential(double meanMillis) {
+            return () -> (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanMillis * 1_000_000);
+        }
+
+        /**
+         * Обычно fastMillis, но с вероятностью slowRate - slowMillis: типичный "хвост" медленных запросов.
+         */
+        static Latency bimodal(double fastMillis, double slowMillis, double slowRate) {
+            Latency fast = exponential(fastMillis);
+            Latency slow = fixed(slowMillis);
+            return () -> ThreadLocalRandom.current().nextDouble() < slowRate ? slow.nextNanos() : fast.nextNanos();
+        }
+    }
+
+    static class FaultInjectingBookRepository implements BookRepository {
+        private final BookRepository delegate;
+        private final Fault[] faults;
+
+        FaultInjectingBookRepository(BookRepository delegate, Fault... faults) {
+            this.delegate = delegate;
+            this.faults = faults;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            inject("get books");
+            return delegate.all();
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            inject("get book");
+            return delegate.bookById(id);
+        }
+
+        private void inject(String operation) throws BookRepositoryException {
+            for (Fault fault : faults) {
+                fault.apply(operation);
+            }
+        }
+    }
+
+    /**
+     * Каждый вызов второго хранилища - это переключение сервиса.
+     */
+    static class CountingBookRepository implements BookRepository {
+        private final BookRepository delegate;
+        private final LongAdder calls = new LongAdder();
+
+        CountingBookRepository(BookRepository delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            calls.increment();
+            return delegate.all();
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            calls.increment();
+            return delegate.bookById(id);
+        }
+
+        long calls() {
+            return calls.sum();
+        }
+    }
+
+    static class InMemoryBookRepository implements BookRepository {
+        private final String name;
+        private final Map<String, String> books;
+        private final List<String> all;
+
+        InMemoryBookRepository(String name, Map<String, String> books) {
+            this.name = name;
+            this.books = new LinkedHashMap<>(books);
+            this.all = new ArrayList<>(books.values());
+        }
+
+        @Override
+        public List<String> all() {
+            return all;
+        }
+
+        @Override
+        public String bookById(String id) {
+            String book = books.get(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present in " + name);
+            }
+            return book;
+        }
+    }
+
+    /**
+     * Генератор нагрузки. Каждый десятый запрос - all(), остальные - bookById().
+     * <p>
+     * В открытом цикле задержка считается от запланированного момента отправки запроса, а не от фактического.
+     * Иначе зависший сервис "замедляет" генератор и в отчёт не попадают запросы, которые должны были прийти,
+     * пока сервис стоял (coordinated omission).
+     */
+    static abstract class Driver {
+        protected final Duration duration;
+
+        Driver(Duration duration) {
+            this.duration = duration;
+        }
+
+        static Driver closed(int threads, Duration duration) {
+            return new ClosedLoopDriver(threads, duration);
+        }
+
+        static Driver open(int requestsPerSecond, int threads, Duration duration) {
+            return new OpenLoopDriver(requestsPerSecond, threads, duration);
+        }
+
+        abstract String mode();
+
+        abstract void drive(BookService service, LatencyHistogram histogram, LongAdder errors) throws InterruptedException;
+
+        Report run(String scenario, BookService service, CountingBookRepository secondary) throws InterruptedException {
+            LatencyHistogram histogram = new LatencyHistogram();
+            LongAdder errors = new LongAdder();
+            long start = System.nanoTime();
+            drive(service, histogram, errors);
+            long elapsed = System.nanoTime() - start;
+            return new Report(scenario, mode(), histogram, errors.sum(), secondary.calls(), elapsed);
+        }
+
+        static void request(BookService service, long sequence, LongAdder errors) {
+            try {
+                if (sequence % 10 == 0) {
+                    service.all();
+                } else {
+                    service.bookById(String.valueOf(ThreadLocalRandom.current().nextInt(1000)));
+                }
+            } catch (BookServiceException ex) {
+                errors.increment();
+            }
+        }
+    }
+
+    static class ClosedLoopDriver extends Driver {
+        private final int threads;
+
+        ClosedLoopDriver(int threads, Duration duration) {
+            super(duration);
+            this.threads = threads;
+        }
+
+        @Override
+        String mode() {
+            return "closed x" + threads;
+        }
+
+        @Override
+        void drive(BookService service, LatencyHistogram histogram, LongAdder errors) throws InterruptedException {
+            long deadline = System.nanoTime() + duration.toNanos();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                executor.execute(() -> {
+                    long sequence = 0;
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            request(service, sequence++, errors);
+                            histogram.record(System.nanoTime() - start);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            executor.shutdown();
+        }
+    }
+
+    static class OpenLoopDriver extends Driver {
+        private final int requestsPerSecond;
+        private final int threads;
+
+        OpenLoopDriver(int requestsPerSecond, int threads, Duration duration) {
+            super(duration);
+            this.requestsPerSecond = requestsPerSecond;
+            this.threads = threads;
+        }
+
+        @Override
+        String mode() {
+            return "open " + requestsPerSecond + "/s";
+        }
+
+        /**
+         * Каждый поток отвечает за свою долю расписания: запрос с номером n отправляется в start + n * interval.
+         */
+        @Override
+        void drive(BookService service, LatencyHistogram histogram, LongAdder errors) throws InterruptedException {
+            long interval = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+            long total = duration.toNanos() / interval;
+            long start = System.nanoTime();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                int offset = t;
+                executor.execute(() -> {
+                    try {
+                        for (long n = offset; n < total; n += threads) {
+                            long intended = start + n * interval;
+                            long wait = intended - System.nanoTime();
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                            request(service, n, errors);
+                            histogram.record(System.nanoTime() - intended);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Логарифмически-линейная гистограмма, как в HdrHistogram:
+     * значения делятся на диапазоны степеней двойки, каждый диапазон - на 64 равные корзины,
+     * поэтому относительная погрешность не больше 1/64. Запись - один инкремент в AtomicLongArray, без блокировок.
+     */
+    static class LatencyHistogram {
+        private static final int PRECISION_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - PRECISION_BITS + 2) * HALF);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            total.increment();
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // повторяем, пока не обновим максимум
+            }
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        /**
+         * Значения меньше SUB_BUCKETS хранятся как есть, остальные сдвигаются так,
+         * чтобы старшие PRECISION_BITS бит попали в [HALF, SUB_BUCKETS).
+         */
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / HALF - 1;
+            long subBucket = index - (long) shift * HALF;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    static class Report {
+        private final String scenario;
+        private final String mode;
+        private final LatencyHistogram histogram;
+        private final long errors;
+        private final long fallbacks;
+        private final long elapsedNanos;
+
+        Report(String scenario, String mode, LatencyHistogram histogram, long errors, long fallbacks, long elapsedNanos) {
+            this.scenario = scenario;
+            this.mode = mode;
+            this.histogram = histogram;
+            this.errors = errors;
+            this.fallbacks = fallbacks;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        static String header() {
+            return String.format("%-12s %-12s %10s %9s %9s %9s %9s %9s %8s",
+                    "scenario", "driver", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "fallback", "errors");
+        }
+
+        @Override
+        public String toString() {
+            long count = histogram.count();
+            return String.format("%-12s %-12s %10.0f %9.2f %9.2f %9.2f %9.2f %8.2f%% %8d",
+                    scenario,
+                    mode,
+                    count / (elapsedNanos / 1e9),
+                    histogram.percentile(0.5) / 1e6,
+                    histogram.percentile(0.99) / 1e6,
+                    histogram.percentile(0.999) / 1e6,
+                    histogram.max() / 1e6,
+                    count == 0 ? 0 : 100.0 * fallbacks / count,
+                    errors);
+        }
+    }
+}
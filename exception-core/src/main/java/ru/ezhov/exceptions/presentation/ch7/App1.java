@@ -0,0 +1,252 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Исключения и производительность.
+ * <p>
+ * До этого момента мы говорили о контрактах и не думали о том, сколько стоит каждый вызов.
+ * Посмотрим на JacksonBookRepository из предыдущих глав: при каждом вызове bookById
+ * 1. создаётся новый ObjectMapper
+ * 2. заново разбирается весь rawBooks
+ * 3. книга ищется линейным проходом по списку
+ * <p>
+ * Под нагрузкой именно это и будет весь профиль процессора.
+ * <p>
+ * Каталог меняется редко, значит его достаточно разобрать один раз в неизменяемый снимок
+ * с индексом по идентификатору, а сам разбор делать через заранее построенный ObjectReader.
+ * Контракт хранилища при этом не меняется: ошибка разбора всё так же приходит как BookRepositoryException.
+ *
+ * @see CatalogSnapshot
+ * @see JacksonBookRepository
+ * @see App2
+ */
+public class App1 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            BookService service = new BookService(
+                    new DbBookRepository(),
+                    new JacksonBookRepository("[\"Book 1\", \"Book 2\"]")
+            );
+            System.out.println(service.all());
+            System.out.println(service.bookById("Book 2"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get all books");
+            ex.printStackTrace();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Неизменяемый снимок каталога.
+     * <p>
+     * Список и индекс не меняются после создания, поэтому снимок можно без блокировок
+     * читать из любого количества потоков.
+     * Индекс сохраняет первое вхождение книги, как это делал findFirst.
+     */
+    private static final class CatalogSnapshot {
+        private final List<String> books;
+        private final Map<String, String> index;
+
+        private CatalogSnapshot(List<String> books, Map<String, String> index) {
+            this.books = books;
+            this.index = index;
+        }
+
+        static CatalogSnapshot of(List<String> books) {
+            Map<String, String> index = new HashMap<>(books.size() * 4 / 3 + 1);
+            for (String book : books) {
+                index.putIfAbsent(book, book);
+            }
+            return new CatalogSnapshot(
+                    Collections.unmodifiableList(new ArrayList<>(books)),
+                    Collections.unmodifiableMap(index)
+            );
+        }
+
+        List<String> books() {
+            return books;
+        }
+
+        String bookById(String id) {
+            return index.get(id);
+        }
+    }
+
+    /**
+     * ObjectReader неизменяем и потокобезопасен, поэтому строим его один раз на всё приложение.
+     * <p>
+     * Снимок создаётся при первом обращении. Если разбор не удался, снимок не сохраняется
+     * и следующий вызов снова попробует разобрать каталог и снова выбросит BookRepositoryException.
+     */
+    private static class JacksonBookRepository implements BookRepository {
+        private static final ObjectReader BOOKS_READER = new ObjectMapper()
+                .readerFor(new TypeReference<List<String>>() {
+                });
+
+        private final String rawBooks;
+        private volatile CatalogSnapshot snapshot;
+
+        public JacksonBookRepository(String rawBooks) {
+            this.rawBooks = rawBooks;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try {
+                return snapshot().books();
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException("Error when get books", "Error when get books, please try later", e);
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            CatalogSnapshot catalog;
+            try {
+                catalog = snapshot();
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+            String book = catalog.bookById(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present");
+            }
+            return book;
+        }
+
+        private CatalogSnapshot snapshot() throws JsonProcessingException {
+            CatalogSnapshot current = snapshot;
+            if (current == null) {
+                synchronized (this) {
+                    current = snapshot;
+                    if (current == null) {
+                        current = CatalogSnapshot.of(BOOKS_READER.readValue(rawBooks));
+                        snapshot = current;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    private static class DbBookRepository implements BookRepository {
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try {
+                DriverManager.getConnection("connection")
+                        .createStatement().executeQuery("SELECT NAME FROM BOOK");
+                // здесь обработка
+                return new ArrayList<>();
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get books",
+                        "Error when get books, please try later",
+                        e
+                );
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try {
+                PreparedStatement ps = DriverManager.getConnection("connection")
+                        .prepareStatement("SELECT NAME FROM BOOK WHERE ID = ?");
+                ps.setString(1, id);
+                ps.executeQuery();
+                // здесь обработка
+                return "DDD";
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Цена стека.
+ * <p>
+ * Самая дорогая часть создания исключения - не new, а fillInStackTrace: JVM обходит весь стек потока.
+ * На пути отказа у нас два-три исключения на запрос (BookRepositoryException, BookServiceException),
+ * и во время аварии основного хранилища именно на это уходит процессор.
+ * <p>
+ * Стек нужен не всегда. Для BookRepositoryException, который сервис перехватывает и тут же уходит
+ * во второе хранилище, достаточно нескольких верхних кадров или вовсе ничего.
+ * <p>
+ * Поэтому ClientException переопределяет fillInStackTrace и спрашивает у StackTracePolicy,
+ * как снимать стек для конкретного типа:
+ * FULL - как обычно,
+ * NONE - без стека, как с writableStackTrace = false,
+ * TOP - только N верхних кадров через StackWalker, не обходя весь стек,
+ * SAMPLED - полный стек у одного исключения из N, остальные без стека.
+ * <p>
+ * Режим можно менять во время работы приложения, места, где выбрасываются исключения, при этом не меняются.
+ * <p>
+ * Запустите пример и посмотрите на замеры. TOP сокращает размер стека в памяти и в логах,
+ * но по процессору на HotSpot он может оказаться дороже FULL: StackWalker сразу создаёт StackTraceElement,
+ * а обычный fillInStackTrace делает это лениво. Дешёвые по процессору режимы - NONE и SAMPLED.
+ * Обратите внимание, что причина (например, SQLException) по-прежнему снимает полный стек, это исключение не наше.
+ *
+ * @see StackTracePolicy
+ * @see ClientException#fillInStackTrace()
+ * @see App11
+ */
+public class App10 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * fillInStackTrace вызывается из конструктора Throwable, до инициализации полей наследников,
+     * поэтому режим определяется только по классу исключения.
+     */
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            StackTraceCapture capture = StackTracePolicy.of(getClass());
+            switch (capture.mode) {
+                case NONE:
+                    return this;
+                case TOP:
+                    setStackTrace(capture.walk());
+                    return this;
+                case SAMPLED:
+                    return capture.sample() ? super.fillInStackTrace() : this;
+                case FULL:
+                default:
+                    return super.fillInStackTrace();
+            }
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        BookService service = new BookService(new FailingBookRepository(), new FailingBookRepository());
+
+        measure("full", service);
+
+        StackTracePolicy.set(ClientException.class, StackTraceCapture.none());
+        measure("none", service);
+
+        StackTracePolicy.set(ClientException.class, StackTraceCapture.top(8));
+        measure("top 8", service);
+
+        StackTracePolicy.set(ClientException.class, StackTraceCapture.sampled(100));
+        measure("sampled 1/100", service);
+
+        // хранилище - без стека, сервис - с полным стеком
+        StackTracePolicy.set(ClientException.class, StackTraceCapture.full());
+        StackTracePolicy.set(BookRepositoryException.class, StackTraceCapture.none());
+        measure("repository none", service);
+
+        try {
+            service.bookById("1");
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        }
+    }
+
+    private static void measure(String name, BookService service) {
+        int depth = 100;
+        int iterations = 20_000;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            atDepth(depth, service, iterations);
+        }
+        long start = System.nanoTime();
+        int[] frames = atDepth(depth, service, iterations);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-16s %6.2f us per failed request, frames: service %d, repository %d%n",
+                name, elapsed / 1e3 / iterations, frames[0], frames[1]);
+    }
+
+    private static int[] atDepth(int depth, BookService service, int iterations) {
+        if (depth > 0) {
+            return atDepth(depth - 1, service, iterations);
+        }
+        int[] frames = new int[2];
+        for (int i = 0; i < iterations; i++) {
+            try {
+                service.bookById("1");
+            } catch (BookServiceException ex) {
+                if (i == iterations - 1) {
+                    frames[0] = ex.getStackTrace().length;
+                    frames[1] = ex.getCause().getStackTrace().length;
+                }
+            }
+        }
+        return frames;
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Как снимать стек у исключения.
+     */
+    private static final class StackTraceCapture {
+        enum Mode {
+            FULL, NONE, TOP, SAMPLED
+        }
+
+        private static final StackTraceCapture FULL = new StackTraceCapture(Mode.FULL, 0);
+        private static final StackTraceCapture NONE = new StackTraceCapture(Mode.NONE, 0);
+        private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+        private final Mode mode;
+        private final int limit;
+
+        private StackTraceCapture(Mode mode, int limit) {
+            this.mode = mode;
+            this.limit = limit;
+        }
+
+        static StackTraceCapture full() {
+            return FULL;
+        }
+
+        static StackTraceCapture none() {
+            return NONE;
+        }
+
+        /**
+         * Аргументы проверяются здесь, при настройке: ошибка в конструкторе исключения
+         * сломала бы каждое исключение настроенного типа.
+         */
+        static StackTraceCapture top(int frames) {
+            if (frames <= 0) {
+                throw new IllegalArgumentException("frames must be positive: " + frames);
+            }
+            return new StackTraceCapture(Mode.TOP, frames);
+        }
+
+        static StackTraceCapture sampled(int oneIn) {
+            if (oneIn <= 0) {
+                throw new IllegalArgumentException("oneIn must be positive: " + oneIn);
+            }
+            return new StackTraceCapture(Mode.SAMPLED, oneIn);
+        }
+
+        boolean sample() {
+            return ThreadLocalRandom.current().nextInt(limit) == 0;
+        }
+
+        /**
+         * Кадры конструкторов исключений и самого fillInStackTrace пропускаются,
+         * стек начинается с места, где исключение создали, как у обычного Throwable.
+         */
+        StackTraceElement[] walk() {
+            return WALKER.walk(frames -> frames
+                    .dropWhile(frame -> Throwable.class.isAssignableFrom(frame.getDeclaringClass())
+                            || frame.getDeclaringClass() == StackTraceCapture.class)
+                    .limit(limit)
+                    .map(StackWalker.StackFrame::toStackTraceElement)
+                    .toArray(StackTraceElement[]::new));
+        }
+
+        @Override
+        public String toString() {
+            return limit == 0 ? mode.toString() : mode + "(" + limit + ")";
+        }
+    }
+
+    /**
+     * Режимы снятия стека по типам исключений.
+     * <p>
+     * Если для типа режим не задан, используется режим ближайшего родителя, по умолчанию - FULL.
+     * Поиск - это несколько обращений к ClassValue, без блокировок и без аллокаций.
+     */
+    private static final class StackTracePolicy {
+        private static final ClassValue<AtomicReference<StackTraceCapture>> CAPTURES =
+                new ClassValue<AtomicReference<StackTraceCapture>>() {
+                    @Override
+                    protected AtomicReference<StackTraceCapture> computeValue(Class<?> type) {
+                        return new AtomicReference<>();
+                    }
+                };
+
+        private StackTracePolicy() {
+        }
+
+        static void set(Class<? extends ClientException> type, StackTraceCapture capture) {
+            CAPTURES.get(type).set(capture);
+        }
+
+        static void reset(Class<? extends ClientException> type) {
+            CAPTURES.get(type).set(null);
+        }
+
+        static StackTraceCapture of(Class<?> type) {
+            for (Class<?> current = type; current != null && current != Exception.class; current = current.getSuperclass()) {
+                StackTraceCapture capture = CAPTURES.get(current).get();
+                if (capture != null) {
+                    return capture;
+                }
+            }
+            return StackTraceCapture.full();
+        }
+    }
+
+    /**
+     * Хранилище, которое всегда падает, как DbBookRepository при недоступной БД.
+     * Причина создаётся заранее, чтобы в замерах была видна только цена наших исключений.
+     */
+    private static class FailingBookRepository implements BookRepository {
+        private final SQLException cause = new SQLException("Connection refused");
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            throw new BookRepositoryException("Error when get books", "Error when get books, please try later", cause);
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            throw new BookRepositoryException("Error when get book by " + id, "Error when get book, please try later", cause);
+        }
+    }
+}
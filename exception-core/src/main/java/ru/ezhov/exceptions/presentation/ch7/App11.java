@@ -0,0 +1,533 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Кэш перед хранилищем.
+ * <p>
+ * Каталог меняется редко, а BookService каждый раз идёт в основное хранилище.
+ * CachingBookRepository - декоратор, который запоминает результаты all и bookById.
+ * <p>
+ * 1. Размер ограничен, вытеснение - сегментированный LRU: новая книга попадает в испытательный сегмент
+ * и переходит в защищённый только при повторном обращении, поэтому разовый проход по каталогу
+ * не вымывает популярные книги.
+ * 2. Запись живёт не дольше expireAfterWrite. После refreshAfterWrite чтение всё ещё отдаёт старое значение,
+ * а в фоне запускается обновление.
+ * 3. Чтение не берёт блокировок: ConcurrentHashMap.get и запись обращения в кольцевой буфер с потерями.
+ * Порядок LRU меняется под блокировкой только при записи или когда буфер заполнился.
+ * <p>
+ * Кэшируются только успешные ответы. BookRepositoryException проходит к сервису как есть,
+ * и сервис, как и раньше, уходит во второе хранилище. Ошибка фонового обновления тоже не попадает в кэш:
+ * остаётся старое значение, пока не истечёт его срок.
+ *
+ * @see CachingBookRepository
+ * @see SegmentedLru
+ * @see App12
+ */
+public class App11 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new LinkedHashMap<>();
+        for (int i = 1; i <= 5; i++) {
+            books.put(String.valueOf(i), "Book " + i);
+        }
+
+        ExecutorService refresher = Executors.newSingleThreadExecutor();
+        FlakyBookRepository primary = new FlakyBookRepository(books);
+        CachingBookRepository cache = new CachingBookRepository(
+                primary,
+                3,
+                Duration.ofMillis(500),
+                Duration.ofMillis(100),
+                refresher
+        );
+        BookService service = new BookService(cache, new FlakyBookRepository(books));
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                service.bookById("1");
+                service.all();
+            }
+            System.out.println("Requests: 200, calls to primary: " + primary.calls() + ", " + cache.stats());
+
+            // 1 - популярная книга, остальные читаются по одному разу и вытесняют друг друга
+            for (int i = 2; i <= 5; i++) {
+                service.bookById(String.valueOf(i));
+            }
+            service.bookById("1");
+            System.out.println("After scan: " + cache.stats());
+
+            // ошибка основного хранилища не кэшируется, сервис уходит во второе хранилище
+            primary.down(true);
+            System.out.println(service.bookById("2"));
+            primary.down(false);
+            System.out.println(service.bookById("2") + ", " + cache.stats());
+
+            // после refreshAfterWrite отдаётся старое значение, новое приходит из фона
+            primary.rename("1", "Book 1, second edition");
+            Thread.sleep(150);
+            System.out.println(service.bookById("1"));
+            Thread.sleep(50);
+            System.out.println(service.bookById("1") + ", " + cache.stats());
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Кэширующий декоратор хранилища.
+     * <p>
+     * all хранится отдельной записью и в размер кэша не входит, размер ограничивает только книги по идентификатору.
+     * Промахи по одному ключу из разных потоков не объединяются: каждый поток сходит в хранилище сам.
+     */
+    private static class CachingBookRepository implements BookRepository {
+        private final BookRepository delegate;
+        private final long expireAfterWriteNanos;
+        private final long refreshAfterWriteNanos;
+        private final Executor refresher;
+
+        private final AtomicReference<Entry<List<String>>> allEntry = new AtomicReference<>();
+        private final ConcurrentMap<String, Entry<String>> books = new ConcurrentHashMap<>();
+        private final SegmentedLru policy;
+        private final ReadBuffer readBuffer = new ReadBuffer(64);
+        private final ReentrantLock policyLock = new ReentrantLock();
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder refreshes = new LongAdder();
+
+        CachingBookRepository(
+                BookRepository delegate,
+                int maximumSize,
+                Duration expireAfterWrite,
+                Duration refreshAfterWrite,
+                Executor refresher
+        ) {
+            if (refreshAfterWrite.compareTo(expireAfterWrite) >= 0) {
+                throw new IllegalArgumentException("refreshAfterWrite must be less than expireAfterWrite");
+            }
+            this.delegate = delegate;
+            this.policy = new SegmentedLru(maximumSize);
+            this.expireAfterWriteNanos = expireAfterWrite.toNanos();
+            this.refreshAfterWriteNanos = refreshAfterWrite.toNanos();
+            this.refresher = refresher;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            long now = System.nanoTime();
+            Entry<List<String>> entry = allEntry.get();
+            if (entry != null && !entry.expired(now, expireAfterWriteNanos)) {
+                hits.increment();
+                if (entry.needsRefresh(now, refreshAfterWriteNanos)) {
+                    scheduleRefresh(entry, () -> refreshAll(entry));
+                }
+                return entry.value;
+            }
+            misses.increment();
+            List<String> books = load(delegate::all);
+            allEntry.set(new Entry<>(Collections.unmodifiableList(new ArrayList<>(books)), System.nanoTime()));
+            return books;
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            long now = System.nanoTime();
+            Entry<String> entry = books.get(id);
+            if (entry != null && !entry.expired(now, expireAfterWriteNanos)) {
+                hits.increment();
+                recordAccess(id);
+                if (entry.needsRefresh(now, refreshAfterWriteNanos)) {
+                    scheduleRefresh(entry, () -> refreshBook(id, entry));
+                }
+                return entry.value;
+            }
+            misses.increment();
+            String book = load(() -> delegate.bookById(id));
+            put(id, new Entry<>(book, System.nanoTime()));
+            return book;
+        }
+
+        CacheStats stats() {
+            return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), loadFailures.sum(), refreshes.sum(), books.size());
+        }
+
+        private <T> T load(RepositoryCall<T> call) throws BookRepositoryException {
+            try {
+                return call.call();
+            } catch (BookRepositoryException | RuntimeException e) {
+                loadFailures.increment();
+                throw e;
+            }
+        }
+
+        /**
+         * Если исполнитель отказал, флаг снимается, и обновление запустит следующее обращение.
+         */
+        private void scheduleRefresh(Entry<?> stale, Runnable refresh) {
+            try {
+                refresher.execute(refresh);
+            } catch (RejectedExecutionException e) {
+                stale.refreshFailed();
+            }
+        }
+
+        private void refreshAll(Entry<List<String>> stale) {
+            try {
+                List<String> books = delegate.all();
+                refreshes.increment();
+                allEntry.compareAndSet(stale, new Entry<>(Collections.unmodifiableList(new ArrayList<>(books)), System.nanoTime()));
+            } catch (BookRepositoryException | RuntimeException e) {
+                loadFailures.increment();
+                stale.refreshFailed();
+            }
+        }
+
+        private void refreshBook(String id, Entry<String> stale) {
+            try {
+                String book = delegate.bookById(id);
+                refreshes.increment();
+                books.replace(id, stale, new Entry<>(book, System.nanoTime()));
+            } catch (BookRepositoryException | RuntimeException e) {
+                loadFailures.increment();
+                stale.refreshFailed();
+            }
+        }
+
+        /**
+         * Запись в таблицу и в политику идёт под одной блокировкой, иначе вытеснение старой копии ключа
+         * могло бы удалить новую запись, параллельно положенную другим потоком.
+         */
+        private void put(String id, Entry<String> entry) {
+            policyLock.lock();
+            try {
+                books.put(id, entry);
+                drainReadBuffer();
+                for (String evicted : policy.add(id)) {
+                    books.remove(evicted);
+                    evictions.increment();
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+
+        /**
+         * Если политику сейчас обновляет другой поток, обращение просто останется в буфере
+         * или потеряется - это лишь немного исказит порядок вытеснения.
+         */
+        private void recordAccess(String id) {
+            if (readBuffer.offer(id) && policyLock.tryLock()) {
+                try {
+                    drainReadBuffer();
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+        }
+
+        private void drainReadBuffer() {
+            readBuffer.drain(policy::access);
+        }
+    }
+
+    /**
+     * Значение и время записи. Флаг refreshing не даёт запустить несколько фоновых обновлений одной записи.
+     */
+    private static final class Entry<T> {
+        private final T value;
+        private final long writtenAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(T value, long writtenAt) {
+            this.value = value;
+            this.writtenAt = writtenAt;
+        }
+
+        boolean expired(long now, long expireAfterWriteNanos) {
+            return now - writtenAt >= expireAfterWriteNanos;
+        }
+
+        boolean needsRefresh(long now, long refreshAfterWriteNanos) {
+            return now - writtenAt >= refreshAfterWriteNanos && refreshing.compareAndSet(false, true);
+        }
+
+        void refreshFailed() {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * Кольцевой буфер обращений. Запись - один getAndIncrement и один set, без блокировок.
+     * Если читатели обгоняют очистку, старые обращения затираются.
+     *
+     * @see CachingBookRepository#recordAccess(String)
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<String> slots;
+        private final int mask;
+        private final AtomicLong writes = new AtomicLong();
+
+        ReadBuffer(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("capacity must be a power of two");
+            }
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * @return true, если буфер заполнился и его пора очистить
+         */
+        boolean offer(String key) {
+            long index = writes.getAndIncrement();
+            slots.lazySet((int) (index & mask), key);
+            return (index & mask) == mask;
+        }
+
+        void drain(Consumer<String> consumer) {
+            for (int i = 0; i < slots.length(); i++) {
+                String key = slots.getAndSet(i, null);
+                if (key != null) {
+                    consumer.accept(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Сегментированный LRU. Не потокобезопасен, вызывается под блокировкой кэша.
+     * <p>
+     * probation - книги, к которым обращались один раз, protection - к которым обращались повторно.
+     * Защищённый сегмент занимает до 80% размера, вытесненные из него книги возвращаются в испытательный.
+     * Вытесняется самая старая книга испытательного сегмента.
+     */
+    private static final class SegmentedLru {
+        private final int maximumSize;
+        private final int protectedSize;
+        private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<String, Boolean> protection = new LinkedHashMap<>();
+
+        SegmentedLru(int maximumSize) {
+            if (maximumSize <= 0) {
+                throw new IllegalArgumentException("maximumSize must be positive");
+            }
+            this.maximumSize = maximumSize;
+            this.protectedSize = Math.max(1, maximumSize * 4 / 5);
+        }
+
+        /**
+         * @return ключи, которые нужно удалить из кэша
+         */
+        List<String> add(String key) {
+            if (protection.containsKey(key)) {
+                access(key);
+                return Collections.emptyList();
+            }
+            probation.remove(key);
+            probation.put(key, Boolean.TRUE);
+            List<String> evicted = new ArrayList<>(1);
+            while (probation.size() + protection.size() > maximumSize) {
+                LinkedHashMap<String, Boolean> victims = probation.isEmpty() ? protection : probation;
+                Iterator<String> eldest = victims.keySet().iterator();
+                evicted.add(eldest.next());
+                eldest.remove();
+            }
+            return evicted;
+        }
+
+        void access(String key) {
+            if (protection.remove(key) != null) {
+                protection.put(key, Boolean.TRUE);
+                return;
+            }
+            if (probation.remove(key) == null) {
+                // книгу уже вытеснили, пока обращение лежало в буфере
+                return;
+            }
+            protection.put(key, Boolean.TRUE);
+            if (protection.size() > protectedSize) {
+                Iterator<String> eldest = protection.keySet().iterator();
+                String demoted = eldest.next();
+                eldest.remove();
+                probation.put(demoted, Boolean.TRUE);
+            }
+        }
+    }
+
+    private static final class CacheStats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long loadFailures;
+        private final long refreshes;
+        private final int size;
+
+        CacheStats(long hits, long misses, long evictions, long loadFailures, long refreshes, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.loadFailures = loadFailures;
+            this.refreshes = refreshes;
+            this.size = size;
+        }
+
+        double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 1.0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits %d, misses %d (%.1f%% hit rate), evictions %d, load failures %d, refreshes %d, size %d",
+                    hits, misses, hitRate() * 100, evictions, loadFailures, refreshes, size);
+        }
+    }
+
+    interface RepositoryCall<T> {
+        T call() throws BookRepositoryException;
+    }
+
+    private static class FlakyBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        FlakyBookRepository(Map<String, String> books) {
+            this.books = new ConcurrentHashMap<>(books);
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        void rename(String id, String name) {
+            books.put(id, name);
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            check("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            check("Error when get book by " + id);
+            String book = books.get(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present");
+            }
+            return book;
+        }
+
+        private void check(String message) throws BookRepositoryException {
+            calls.incrementAndGet();
+            if (down) {
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Книги нет - это не ошибка.
+ * <p>
+ * Во всех предыдущих примерах отсутствующая книга заканчивалась на findFirst().get()
+ * и NoSuchElementException - непроверяемым исключением, которого нет в контракте хранилища.
+ * Вызывающий код о нём не знает, а каждый промах стоит создания исключения со стеком
+ * и полного прохода по каталогу. Боты, перебирающие несуществующие идентификаторы, платят эту цену за нас.
+ * <p>
+ * Поэтому отсутствие книги становится обычным результатом: bookById возвращает Optional
+ * и в хранилище, и в сервисе. Исключения остаются только для ошибок:
+ * BookRepositoryException - хранилище не ответило, и сервис уходит во второе хранилище,
+ * пустой Optional - хранилище ответило, что книги нет, и второе хранилище уже не спрашиваем.
+ * <p>
+ * Чтобы повторные промахи не доходили до хранилищ, сервис запоминает их в NegativeCache:
+ * размер ограничен, срок жизни короткий, чтобы добавленная книга стала видна быстро.
+ *
+ * @see NegativeCache
+ * @see BookService#bookById(String)
+ * @see App13
+ */
+public class App12 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        /**
+         * @return книга или пустой Optional, если книги с таким идентификатором нет
+         * @throws BookRepositoryException если хранилище не смогло ответить
+         */
+        Optional<String> bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+
+        InMemoryDbBookRepository primary = new InMemoryDbBookRepository(books);
+        BookService service = new BookService(
+                primary,
+                new JacksonBookRepository("[\"Book 1\", \"Book 2\"]"),
+                new NegativeCache(10_000, Duration.ofSeconds(5))
+        );
+
+        try {
+            System.out.println(service.bookById("1").orElse("not found"));
+            System.out.println(service.bookById("404").orElse("not found"));
+
+            // бот перебирает одни и те же несуществующие идентификаторы
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 1000; i++) {
+                    service.bookById("missing-" + i);
+                }
+            }
+            System.out.println("Lookups: 10000, calls to primary: " + primary.calls()
+                    + ", negative cache: " + service.negativeCache.stats());
+
+            // книгу добавили - сервису нужно забыть промах
+            primary.add("missing-1", "Book missing-1");
+            System.out.println(service.bookById("missing-1").orElse("not found"));
+            service.bookAdded("missing-1");
+            System.out.println(service.bookById("missing-1").orElse("not found"));
+
+            // основное хранилище недоступно - это ошибка, а не промах, отвечает второе хранилище
+            primary.down(true);
+            System.out.println(service.bookById("Book 2").orElse("not found"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+        private final NegativeCache negativeCache;
+
+        public BookService(
+                BookRepository primaryBookRepository,
+                BookRepository secondaryBookRepository,
+                NegativeCache negativeCache
+        ) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+            this.negativeCache = negativeCache;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        /**
+         * Промах запоминается только если хранилище действительно ответило, что книги нет.
+         * Если основное хранилище упало, а второе ответило промахом, промах тоже настоящий.
+         */
+        Optional<String> bookById(String id) throws BookServiceException {
+            if (negativeCache.isKnownMissing(id)) {
+                return Optional.empty();
+            }
+            long generation = negativeCache.generation();
+            Optional<String> book;
+            try {
+                try {
+                    book = primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    book = secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+            if (!book.isPresent()) {
+                negativeCache.rememberMissing(id, generation);
+            }
+            return book;
+        }
+
+        /**
+         * Вызывается, когда книга добавлена в каталог, чтобы она была видна сразу, а не через ttl.
+         */
+        void bookAdded(String id) {
+            negativeCache.forget(id);
+        }
+    }
+
+    /**
+     * Кэш идентификаторов, которых нет в каталоге.
+     * <p>
+     * Хранит только время истечения, само значение не нужно.
+     * Когда кэш заполнен, сначала удаляются истёкшие записи, а затем произвольные, пока не освободится
+     * десятая часть места, чтобы проход по кэшу не повторялся на каждой вставке.
+     * Точный LRU для промахов не нужен, важно только, чтобы память была ограничена.
+     * Чистку выполняет один поток, остальные в это время просто вставляют.
+     * <p>
+     * Поиск, начатый до bookAdded и закончившийся после, мог прочитать каталог ещё без новой книги.
+     * Чтобы такой промах не спрятал книгу на весь ttl, каждый forget увеличивает поколение,
+     * и промах, найденный в старом поколении, не запоминается. Поколение общее для всех идентификаторов:
+     * добавление любой книги лишь изредка отменяет запоминание чужого промаха, это дешевле, чем поколение на ключ.
+     */
+    private static final class NegativeCache {
+        private final int maximumSize;
+        private final long ttlNanos;
+        private final ConcurrentMap<String, Long> expiresAt = new ConcurrentHashMap<>();
+        private final AtomicLong generation = new AtomicLong();
+        private final AtomicBoolean evicting = new AtomicBoolean();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        NegativeCache(int maximumSize, Duration ttl) {
+            if (maximumSize <= 0) {
+                throw new IllegalArgumentException("maximumSize must be positive");
+            }
+            this.maximumSize = maximumSize;
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        boolean isKnownMissing(String id) {
+            Long expires = expiresAt.get(id);
+            if (expires != null) {
+                if (System.nanoTime() - expires < 0) {
+                    hits.increment();
+                    return true;
+                }
+                expiresAt.remove(id, expires);
+            }
+            misses.increment();
+            return false;
+        }
+
+        /**
+         * Поколение читается до похода в хранилище и передаётся в rememberMissing.
+         */
+        long generation() {
+            return generation.get();
+        }
+
+        /**
+         * Повторная проверка после put закрывает гонку с forget, который прошёл между проверкой и вставкой.
+         */
+        void rememberMissing(String id, long lookupGeneration) {
+            if (generation.get() != lookupGeneration) {
+                return;
+            }
+            if (expiresAt.size() >= maximumSize) {
+                evict();
+            }
+            Long expires = System.nanoTime() + ttlNanos;
+            expiresAt.put(id, expires);
+            if (generation.get() != lookupGeneration) {
+                expiresAt.remove(id, expires);
+            }
+        }
+
+        void forget(String id) {
+            generation.incrementAndGet();
+            expiresAt.remove(id);
+        }
+
+        String stats() {
+            return "hits " + hits.sum() + ", misses " + misses.sum() + ", evictions " + evictions.sum()
+                    + ", size " + expiresAt.size();
+        }
+
+        private void evict() {
+            if (!evicting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                evictExpiredAndArbitrary();
+            } finally {
+                evicting.set(false);
+            }
+        }
+
+        private void evictExpiredAndArbitrary() {
+            long now = System.nanoTime();
+            expiresAt.entrySet().removeIf(entry -> now - entry.getValue() >= 0);
+            Iterator<String> ids = expiresAt.keySet().iterator();
+            int target = maximumSize - Math.max(1, maximumSize / 10);
+            while (expiresAt.size() > target && ids.hasNext()) {
+                ids.next();
+                ids.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Снимок каталога из App1, поиск по индексу возвращает Optional вместо исключения.
+     */
+    private static class JacksonBookRepository implements BookRepository {
+        private static final ObjectReader BOOKS_READER = new ObjectMapper()
+                .readerFor(new TypeReference<List<String>>() {
+                });
+
+        private final String rawBooks;
+        private volatile Map<String, String> index;
+        private volatile List<String> books;
+
+        public JacksonBookRepository(String rawBooks) {
+            this.rawBooks = rawBooks;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try {
+                load();
+                return books;
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException("Error when get books", "Error when get books, please try later", e);
+            }
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            try {
+                load();
+                return Optional.ofNullable(index.get(id));
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+        }
+
+        /**
+         * index записывается последним, поэтому ненулевой index означает, что books тоже готов.
+         */
+        private void load() throws JsonProcessingException {
+            if (index == null) {
+                synchronized (this) {
+                    if (index == null) {
+                        parse();
+                    }
+                }
+            }
+        }
+
+        private void parse() throws JsonProcessingException {
+            List<String> parsed = BOOKS_READER.readValue(rawBooks);
+            Map<String, String> byId = new HashMap<>(parsed.size() * 4 / 3 + 1);
+            for (String book : parsed) {
+                byId.putIfAbsent(book, book);
+            }
+            books = Collections.unmodifiableList(new ArrayList<>(parsed));
+            index = Collections.unmodifiableMap(byId);
+        }
+    }
+
+    /**
+     * Заменяет DbBookRepository: SELECT NAME FROM BOOK WHERE ID = ? без строк в ResultSet - это пустой Optional.
+     */
+    private static class InMemoryDbBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        InMemoryDbBookRepository(Map<String, String> books) {
+            this.books = new ConcurrentHashMap<>(books);
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        void add(String id, String name) {
+            books.put(id, name);
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            check("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            check("Error when get book by " + id);
+            return Optional.ofNullable(books.get(id));
+        }
+
+        private void check(String message) throws BookRepositoryException {
+            calls.incrementAndGet();
+            if (down) {
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}
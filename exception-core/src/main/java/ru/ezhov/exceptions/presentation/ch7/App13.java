@@ -0,0 +1,421 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Фильтр Блума перед хранилищами.
+ * <p>
+ * Несуществующий идентификатор может стоить двух обращений: в основное хранилище и, если оно упало, во второе.
+ * NegativeCache из App12 помогает только на повторных промахах, а бот может каждый раз спрашивать новый идентификатор.
+ * <p>
+ * Фильтр Блума отвечает на вопрос "может ли такая книга быть в каталоге":
+ * "нет" - точно нет, и хранилища можно не трогать, "да" - возможно, идём в хранилище как обычно.
+ * Ложных "нет" не бывает, доля ложных "да" задаётся при построении.
+ * <p>
+ * 1. Биты лежат вне кучи в ByteBuffer.allocateDirect: миллион идентификаторов при 1% ложных срабатываний - около 1.2 МБ,
+ * которые не просматривает сборщик мусора.
+ * 2. Размер считается по ожидаемому числу книг и доле ложных срабатываний, но не больше заданного бюджета памяти.
+ * Если бюджета не хватает, фильтр строится в бюджет, и фактическая доля ложных срабатываний выше.
+ * 3. Новые книги добавляются в фильтр сразу, удалённые исчезают при фоновой перестройке из каталога.
+ * Перестройка собирает новый фильтр рядом и подменяет ссылку, читатели не ждут.
+ * 4. Пока фильтр не построен или перестройка не удалась, он пропускает все идентификаторы:
+ * сбой фильтра не должен превращаться в отказ сервиса.
+ *
+ * @see BloomFilter
+ * @see MembershipFilter
+ * @see App14
+ */
+public class App13 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        Optional<String> bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new ConcurrentHashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            books.put("id-" + i, "Book " + i);
+        }
+
+        ScheduledExecutorService rebuilder = Executors.newSingleThreadScheduledExecutor();
+        InMemoryDbBookRepository primary = new InMemoryDbBookRepository(books);
+        InMemoryDbBookRepository secondary = new InMemoryDbBookRepository(books);
+        MembershipFilter filter = new MembershipFilter(primary::ids, 0.01, 1 << 20);
+        filter.scheduleRebuild(rebuilder, Duration.ofMinutes(5));
+        BookService service = new BookService(primary, secondary, filter);
+
+        try {
+            while (!filter.isReady()) {
+                Thread.sleep(10);
+            }
+            System.out.println("Filter: " + filter.stats());
+
+            primary.down(true);
+            for (int i = 0; i < 100_000; i++) {
+                service.bookById("bot-" + i);
+            }
+            System.out.println("Missing lookups: 100000, calls to primary: " + primary.calls()
+                    + ", calls to secondary: " + secondary.calls() + ", rejected: " + filter.rejected());
+
+            primary.down(false);
+            System.out.println(service.bookById("id-42").orElse("not found"));
+
+            books.put("id-new", "New book");
+            filter.bookAdded("id-new");
+            System.out.println(service.bookById("id-new").orElse("not found"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        } finally {
+            rebuilder.shutdown();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+        private final MembershipFilter membershipFilter;
+
+        public BookService(
+                BookRepository primaryBookRepository,
+                BookRepository secondaryBookRepository,
+                MembershipFilter membershipFilter
+        ) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+            this.membershipFilter = membershipFilter;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        Optional<String> bookById(String id) throws BookServiceException {
+            if (!membershipFilter.mightContain(id)) {
+                return Optional.empty();
+            }
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Фильтр Блума поверх ByteBuffer вне кучи.
+     * <p>
+     * k позиций считаются двойным хешированием 64-битных h1 + i * h2, так что адресуются все биты фильтра.
+     * <p>
+     * Биты лежат в 64-битных словах. Запись - атомарный getAndBitwiseOr с семантикой volatile, чтение - getAcquire,
+     * так что читатель видит биты, записанные до него, без блокировок. Читатель, который проверяет книгу
+     * в момент её добавления, может получить "нет" - так же, как если бы он пришёл на мгновение раньше.
+     */
+    private static final class BloomFilter {
+        private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final ByteBuffer bits;
+        private final long bitCount;
+        private final int hashCount;
+        private final int expectedInsertions;
+
+        private BloomFilter(long bitCount, int hashCount, int expectedInsertions) {
+            this.bitCount = bitCount;
+            this.hashCount = hashCount;
+            this.expectedInsertions = expectedInsertions;
+            long words = (bitCount + 63) >>> 6;
+            if (words > (Integer.MAX_VALUE - Long.BYTES) / Long.BYTES) {
+                throw new IllegalArgumentException("Bloom filter is too large: " + bitCount + " bits");
+            }
+            // атомарный доступ через VarHandle требует выравнивания слов по 8 байт
+            this.bits = ByteBuffer.allocateDirect((int) words * Long.BYTES + Long.BYTES - 1).alignedSlice(Long.BYTES);
+        }
+
+        /**
+         * m = -n * ln(p) / ln(2)^2, k = m / n * ln(2), m ограничено бюджетом в байтах.
+         */
+        static BloomFilter create(int expectedInsertions, double falsePositiveRate, int maxBytes) {
+            int n = Math.max(1, expectedInsertions);
+            long optimalBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            long bitCount = Math.max(64, Math.min(optimalBits, (long) maxBytes * 8));
+            int hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+            return new BloomFilter(bitCount, hashCount, n);
+        }
+
+        void put(String id) {
+            long h1 = hash(id);
+            long h2 = secondHash(h1);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = index(h1 + i * h2);
+                WORDS.getAndBitwiseOr(bits, (int) (bit >>> 6) * Long.BYTES, 1L << bit);
+            }
+        }
+
+        boolean mightContain(String id) {
+            long h1 = hash(id);
+            long h2 = secondHash(h1);
+            for (int i = 1; i <= hashCount; i++) {
+                long bit = index(h1 + i * h2);
+                if (((long) WORDS.getAcquire(bits, (int) (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ожидаемая доля ложных срабатываний при заполнении на expectedInsertions: (1 - e^(-kn/m))^k.
+         */
+        double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashCount * expectedInsertions / bitCount), hashCount);
+        }
+
+        int sizeInBytes() {
+            return bits.capacity();
+        }
+
+        private long index(long combined) {
+            return (combined & Long.MAX_VALUE) % bitCount;
+        }
+
+        /**
+         * Второй хеш для двойного хеширования, нечётный, чтобы шаг не вырождался.
+         */
+        private static long secondHash(long hash) {
+            long h = hash * 0x9e3779b97f4a7c15L;
+            return (h ^ (h >>> 29)) | 1;
+        }
+
+        /**
+         * FNV-1a по символам с перемешиванием из MurmurHash3, без аллокаций.
+         */
+        private static long hash(String id) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                hash ^= id.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    /**
+     * Фильтр каталога для сервиса.
+     * <p>
+     * Книги, добавленные во время перестройки, запоминаются и доливаются в новый фильтр перед подменой,
+     * поэтому ложных "нет" не появляется и при перестройке.
+     */
+    private static final class MembershipFilter {
+        private final RepositoryCall<Collection<String>> ids;
+        private final double falsePositiveRate;
+        private final int maxBytes;
+        private final Object writeLock = new Object();
+        private final Set<String> addedDuringRebuild = new HashSet<>();
+        private final LongAdder rejected = new LongAdder();
+
+        private volatile BloomFilter current;
+        private boolean rebuilding;
+
+        MembershipFilter(RepositoryCall<Collection<String>> ids, double falsePositiveRate, int maxBytes) {
+            if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+            }
+            this.ids = ids;
+            this.falsePositiveRate = falsePositiveRate;
+            this.maxBytes = maxBytes;
+        }
+
+        void scheduleRebuild(ScheduledExecutorService executor, Duration interval) {
+            executor.scheduleWithFixedDelay(this::rebuild, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        boolean isReady() {
+            return current != null;
+        }
+
+        boolean mightContain(String id) {
+            BloomFilter filter = current;
+            if (filter == null || filter.mightContain(id)) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+
+        void bookAdded(String id) {
+            synchronized (writeLock) {
+                BloomFilter filter = current;
+                if (filter != null) {
+                    filter.put(id);
+                }
+                if (rebuilding) {
+                    addedDuringRebuild.add(id);
+                }
+            }
+        }
+
+        long rejected() {
+            return rejected.sum();
+        }
+
+        String stats() {
+            BloomFilter filter = current;
+            if (filter == null) {
+                return "not built";
+            }
+            return String.format("%d bytes off-heap, %d hashes, expected false positive rate %.3f%%",
+                    filter.sizeInBytes(), filter.hashCount, filter.expectedFalsePositiveRate() * 100);
+        }
+
+        /**
+         * Если каталог прочитать или фильтр построить не удалось (в том числе не хватило памяти вне кучи),
+         * остаётся старый фильтр, следующая попытка - по расписанию.
+         * Идентификаторы читаются с запасом в 10%, чтобы добавленные книги не переполняли фильтр до следующей перестройки.
+         */
+        void rebuild() {
+            synchronized (writeLock) {
+                rebuilding = true;
+                addedDuringRebuild.clear();
+            }
+            try {
+                Collection<String> catalog = ids.call();
+                BloomFilter filter = BloomFilter.create(catalog.size() + catalog.size() / 10, falsePositiveRate, maxBytes);
+                for (String id : catalog) {
+                    filter.put(id);
+                }
+                synchronized (writeLock) {
+                    for (String id : addedDuringRebuild) {
+                        filter.put(id);
+                    }
+                    current = filter;
+                }
+            } catch (BookRepositoryException ex) {
+                ex.printStackTrace();
+                System.err.println("Membership filter was not rebuilt: " + ex.getClientMessage());
+            } catch (RuntimeException | OutOfMemoryError ex) {
+                // исключение, выпущенное в scheduleWithFixedDelay, молча отменило бы все следующие перестройки
+                System.err.println("An unexpected error occurred when rebuild membership filter");
+                ex.printStackTrace();
+            } finally {
+                synchronized (writeLock) {
+                    rebuilding = false;
+                    addedDuringRebuild.clear();
+                }
+            }
+        }
+    }
+
+    interface RepositoryCall<T> {
+        T call() throws BookRepositoryException;
+    }
+
+    private static class InMemoryDbBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        InMemoryDbBookRepository(Map<String, String> books) {
+            this.books = books;
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        Collection<String> ids() throws BookRepositoryException {
+            check("Error when get book ids");
+            return new ArrayList<>(books.keySet());
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            check("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            check("Error when get book by " + id);
+            return Optional.ofNullable(books.get(id));
+        }
+
+        private void check(String message) throws BookRepositoryException {
+            calls.incrementAndGet();
+            if (down) {
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}
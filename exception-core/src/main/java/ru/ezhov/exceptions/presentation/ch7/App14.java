@@ -0,0 +1,348 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Один запрос вместо сотни.
+ * <p>
+ * Когда у популярной книги истекает запись в кэше (App11), сотни потоков одновременно вызывают
+ * BookService.bookById с одним и тем же идентификатором, и все они идут в DbBookRepository.
+ * То же самое с all сразу после старта приложения.
+ * <p>
+ * SingleFlightBookRepository - декоратор, который объединяет одинаковые запросы, пока они выполняются:
+ * первый поток (ведущий) идёт в хранилище, остальные ждут его результат.
+ * После завершения запрос забывается, следующий вызов снова пойдёт в хранилище - это не кэш.
+ * <p>
+ * Ошибка достаётся всем: ведущий получает исходное BookRepositoryException,
+ * остальные - своё BookRepositoryException, причиной которого будет общая ошибка, как в App7.
+ * Поэтому BookService для каждого потока, как и раньше, уходит во второе хранилище.
+ *
+ * @see SingleFlightBookRepository
+ * @see App15
+ */
+public class App14 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        Optional<String> bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+
+        SlowBookRepository primary = new SlowBookRepository(books, Duration.ofMillis(50));
+        SingleFlightBookRepository singleFlight = new SingleFlightBookRepository(primary);
+        SlowBookRepository secondary = new SlowBookRepository(books, Duration.ofMillis(5));
+        BookService service = new BookService(singleFlight, secondary);
+
+        ExecutorService clients = Executors.newFixedThreadPool(200);
+        try {
+            int failed = burst(clients, 200, () -> service.bookById("1"));
+            System.out.println("bookById x200: calls to primary " + primary.calls() + ", failed " + failed
+                    + ", " + singleFlight.stats());
+
+            failed = burst(clients, 200, service::all);
+            System.out.println("all x200: calls to primary " + primary.calls() + ", failed " + failed
+                    + ", " + singleFlight.stats());
+
+            primary.down(true);
+            failed = burst(clients, 200, () -> service.bookById("2"));
+            System.out.println("bookById x200, primary down: calls to primary " + primary.calls()
+                    + ", calls to secondary " + secondary.calls() + ", failed " + failed);
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Все запросы стартуют одновременно.
+     *
+     * @return сколько запросов закончилось BookServiceException
+     */
+    private static int burst(ExecutorService clients, int requests, ServiceCall call) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(requests);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < requests; i++) {
+            clients.execute(() -> {
+                try {
+                    start.await();
+                    call.call();
+                } catch (BookServiceException ex) {
+                    failed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        done.await();
+        return failed.get();
+    }
+
+    interface ServiceCall {
+        Object call() throws BookServiceException;
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        Optional<String> bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Объединяет одновременные одинаковые вызовы хранилища.
+     * <p>
+     * Запрос в полёте - это CompletableFuture в ConcurrentHashMap. Кто первым положил его через putIfAbsent,
+     * тот и ведущий; ведущий удаляет запись после завершения, даже если хранилище выбросило исключение.
+     * <p>
+     * Результат all отдаётся всем ожидающим один и тот же, поэтому список заворачивается в неизменяемый:
+     * один вызывающий не может испортить результат другого.
+     */
+    private static class SingleFlightBookRepository implements BookRepository {
+        private static final Key ALL = new Key("all", null);
+
+        private final BookRepository delegate;
+        private final ConcurrentMap<Key, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+        private final LongAdder leaders = new LongAdder();
+        private final LongAdder followers = new LongAdder();
+
+        SingleFlightBookRepository(BookRepository delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            return execute(
+                    ALL,
+                    "Error when get books",
+                    "Error when get books, please try later",
+                    () -> Collections.unmodifiableList(delegate.all())
+            );
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            return execute(
+                    new Key("bookById", id),
+                    "Error when get book by " + id,
+                    "Error when get book, please try later",
+                    () -> delegate.bookById(id)
+            );
+        }
+
+        String stats() {
+            return "backend calls " + leaders.sum() + ", coalesced " + followers.sum();
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T execute(Key key, String message, String clientMessage, RepositoryCall<T> call)
+                throws BookRepositoryException {
+            CompletableFuture<Object> flight = new CompletableFuture<>();
+            CompletableFuture<Object> existing = inFlight.putIfAbsent(key, flight);
+            if (existing != null) {
+                followers.increment();
+                return (T) await(existing, message, clientMessage);
+            }
+            leaders.increment();
+            try {
+                T result = call.call();
+                flight.complete(result);
+                return result;
+            } catch (BookRepositoryException | RuntimeException | Error e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, flight);
+            }
+        }
+
+        /**
+         * Непроверяемое исключение ведущего пробрасывается как есть, как и у самого ведущего:
+         * ошибка программы не должна у одних потоков падать сразу, а у других уводить во второе хранилище.
+         */
+        private static Object await(CompletableFuture<Object> flight, String message, String clientMessage)
+                throws BookRepositoryException {
+            try {
+                return flight.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookRepositoryException(
+                        "Interrupted when wait for in-flight call: " + message,
+                        clientMessage,
+                        e
+                );
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new BookRepositoryException(
+                        message,
+                        cause instanceof ClientException ? ((ClientException) cause).getClientMessage() : clientMessage,
+                        cause
+                );
+            }
+        }
+    }
+
+    /**
+     * Метод и аргументы вызова.
+     */
+    private static final class Key {
+        private final String method;
+        private final String argument;
+
+        Key(String method, String argument) {
+            this.method = method;
+            this.argument = argument;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return method.equals(key.method) && Objects.equals(argument, key.argument);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * method.hashCode() + Objects.hashCode(argument);
+        }
+    }
+
+    interface RepositoryCall<T> {
+        T call() throws BookRepositoryException;
+    }
+
+    private static class SlowBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final long latencyNanos;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        SlowBookRepository(Map<String, String> books, Duration latency) {
+            this.books = new LinkedHashMap<>(books);
+            this.latencyNanos = latency.toNanos();
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            roundTrip("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            roundTrip("Error when get book by " + id);
+            return Optional.ofNullable(books.get(id));
+        }
+
+        private void roundTrip(String message) throws BookRepositoryException {
+            calls.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(latencyNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (down) {
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Лучше вчерашний каталог, чем никакой.
+ * <p>
+ * Если оба хранилища недоступны, BookService выбрасывает BookServiceException
+ * и пользователь видит "please try later" (ch3 App3). Каталог меняется редко,
+ * поэтому последний успешный ответ почти всегда лучше ошибки.
+ * <p>
+ * DegradedBookService запоминает последний успешный ответ all и bookById.
+ * Когда сервис падает, он отдаёт этот ответ с пометкой "устарел" и возрастом,
+ * а в фоне пробует обновить его. Пока идёт авария, запросы не ждут отказа хранилищ,
+ * а сразу получают сохранённый ответ.
+ * <p>
+ * Устаревший ответ отдаётся только в пределах maxStaleness. Если он старше или его нет,
+ * вызывающий код получает BookServiceException, как и раньше: молча отдавать сколь угодно старые данные нельзя.
+ * <p>
+ * Результат - Served: значение, флаг stale и возраст. Решать, показывать ли пользователю
+ * "данные могут быть неактуальны", остаётся уровню представления.
+ *
+ * @see DegradedBookService
+ * @see Served
+ * @see App16
+ */
+public class App15 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        Optional<String> bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+
+        FlakyBookRepository primary = new FlakyBookRepository(books);
+        FlakyBookRepository secondary = new FlakyBookRepository(books);
+        ExecutorService refresher = Executors.newSingleThreadExecutor();
+        DegradedBookService service = new DegradedBookService(
+                new BookService(primary, secondary),
+                Duration.ofMillis(300),
+                Duration.ofMillis(50),
+                1000,
+                refresher
+        );
+
+        try {
+            System.out.println(service.all());
+            System.out.println(service.bookById("1"));
+
+            primary.down(true);
+            secondary.down(true);
+            Thread.sleep(100);
+            System.out.println(service.all());
+            System.out.println(service.bookById("1"));
+            for (int i = 0; i < 1000; i++) {
+                service.bookById("1");
+            }
+            System.out.println("1000 requests during outage, calls to primary: " + primary.calls());
+
+            Thread.sleep(300);
+            try {
+                service.bookById("1");
+            } catch (BookServiceException ex) {
+                System.err.println("Too stale: " + ex.getClientMessage());
+            }
+
+            primary.down(false);
+            Thread.sleep(100);
+            System.out.println(service.bookById("1"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        Optional<String> bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Ответ сервиса и его свежесть.
+     */
+    private static final class Served<T> {
+        private final T value;
+        private final boolean stale;
+        private final Duration age;
+
+        private Served(T value, boolean stale, Duration age) {
+            this.value = value;
+            this.stale = stale;
+            this.age = age;
+        }
+
+        static <T> Served<T> fresh(T value) {
+            return new Served<>(value, false, Duration.ZERO);
+        }
+
+        static <T> Served<T> stale(T value, Duration age) {
+            return new Served<>(value, true, age);
+        }
+
+        T value() {
+            return value;
+        }
+
+        boolean isStale() {
+            return stale;
+        }
+
+        Duration age() {
+            return age;
+        }
+
+        @Override
+        public String toString() {
+            return stale ? value + " (stale, " + age.toMillis() + " ms old)" : String.valueOf(value);
+        }
+    }
+
+    /**
+     * Сервис с последним успешным ответом.
+     * <p>
+     * Запись в режиме аварии не ходит в сервис синхронно: запросы получают сохранённый ответ,
+     * а одно фоновое обновление на запись пробует сервис не чаще раза в retryInterval.
+     * Первое удачное обновление возвращает запись в обычный режим.
+     * <p>
+     * Число запомненных книг ограничено maxBooks: при переполнении вытесняется книга,
+     * к которой дольше всего не обращались (LRU), так что новые книги запоминаются и в долгой работе.
+     * Таблица книг синхронизирована: обращение к ней короткое, а порядок LRU меняет и чтение.
+     * Непроверяемые исключения не перехватываются - это ошибки программы, а не аварии хранилищ.
+     */
+    private static class DegradedBookService {
+        private final BookService delegate;
+        private final long maxStalenessNanos;
+        private final long retryIntervalNanos;
+        private final Executor refresher;
+
+        private final AtomicReference<LastKnownGood<List<String>>> all = new AtomicReference<>();
+        private final Map<String, LastKnownGood<Optional<String>>> books;
+
+        DegradedBookService(
+                BookService delegate,
+                Duration maxStaleness,
+                Duration retryInterval,
+                int maxBooks,
+                Executor refresher
+        ) {
+            this.delegate = delegate;
+            this.maxStalenessNanos = maxStaleness.toNanos();
+            this.retryIntervalNanos = retryInterval.toNanos();
+            if (maxBooks <= 0) {
+                throw new IllegalArgumentException("maxBooks must be positive");
+            }
+            this.refresher = refresher;
+            this.books = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LastKnownGood<Optional<String>>> eldest) {
+                    return size() > maxBooks;
+                }
+            });
+        }
+
+        Served<List<String>> all() throws BookServiceException {
+            return serve(all.get(), delegate::all, this::rememberAll);
+        }
+
+        Served<Optional<String>> bookById(String id) throws BookServiceException {
+            return serve(books.get(id), () -> delegate.bookById(id), book -> rememberBook(id, book));
+        }
+
+        private <T> Served<T> serve(LastKnownGood<T> known, ServiceCall<T> call, Remember<T> remember)
+                throws BookServiceException {
+            long now = System.nanoTime();
+            if (known != null && known.degraded && known.servable(now, maxStalenessNanos)) {
+                revalidate(known, call, remember, now);
+                return known.served(now);
+            }
+            try {
+                T value = call.call();
+                remember.remember(value);
+                return Served.fresh(value);
+            } catch (BookServiceException ex) {
+                if (known == null || !known.servable(now, maxStalenessNanos)) {
+                    throw ex;
+                }
+                known.degraded = true;
+                revalidate(known, call, remember, now);
+                return known.served(now);
+            }
+        }
+
+        /**
+         * Следующая попытка откладывается после любого исхода, в том числе непроверяемого исключения:
+         * удачный ответ всё равно заменяет запись целиком. Если исполнитель отказал, флаг снимается,
+         * и обновление попробует запрос после retryInterval.
+         */
+        private <T> void revalidate(LastKnownGood<T> known, ServiceCall<T> call, Remember<T> remember, long now) {
+            if (now - known.nextRetryAt < 0 || !known.refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                refresher.execute(() -> {
+                    try {
+                        remember.remember(call.call());
+                    } catch (BookServiceException ex) {
+                        // запись остаётся в режиме аварии
+                    } finally {
+                        refreshDone(known);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshDone(known);
+            }
+        }
+
+        private void refreshDone(LastKnownGood<?> known) {
+            known.nextRetryAt = System.nanoTime() + retryIntervalNanos;
+            known.refreshing.set(false);
+        }
+
+        private void rememberAll(List<String> value) {
+            all.set(new LastKnownGood<>(Collections.unmodifiableList(new ArrayList<>(value)), System.nanoTime()));
+        }
+
+        private void rememberBook(String id, Optional<String> book) {
+            books.put(id, new LastKnownGood<>(book, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Последний успешный ответ. Новый успешный ответ заменяет запись целиком,
+     * поэтому флаги аварии и время следующей попытки относятся только к ней.
+     */
+    private static final class LastKnownGood<T> {
+        private final T value;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile boolean degraded;
+        private volatile long nextRetryAt;
+
+        LastKnownGood(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.nextRetryAt = loadedAt;
+        }
+
+        boolean servable(long now, long maxStalenessNanos) {
+            return now - loadedAt <= maxStalenessNanos;
+        }
+
+        Served<T> served(long now) {
+            return Served.stale(value, Duration.ofNanos(now - loadedAt));
+        }
+    }
+
+    interface ServiceCall<T> {
+        T call() throws BookServiceException;
+    }
+
+    interface Remember<T> {
+        void remember(T value);
+    }
+
+    private static class FlakyBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        FlakyBookRepository(Map<String, String> books) {
+            this.books = new LinkedHashMap<>(books);
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            check("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public Optional<String> bookById(String id) throws BookRepositoryException {
+            check("Error when get book by " + id);
+            return Optional.ofNullable(books.get(id));
+        }
+
+        private void check(String message) throws BookRepositoryException {
+            calls.incrementAndGet();
+            if (down) {
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}
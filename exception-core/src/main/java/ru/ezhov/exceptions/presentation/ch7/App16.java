@@ -0,0 +1,778 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import arrow.core.Either;
+import io.vavr.control.Try;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Что происходит внутри BookService.
+ * <p>
+ * Мы не знаем, как часто сервис уходит во второе хранилище, сколько длится каждый вызов хранилища
+ * и какие исключения встречаются чаще всего. Добавим метрики:
+ * 1. гистограмма задержек на каждый метод каждого хранилища
+ * 2. счётчики успехов, ошибок по классу исключения и переключений на второе хранилище на LongAdder
+ * 3. снимок всех метрик для отчёта или экспорта
+ * <p>
+ * Запись метрики не создаёт объектов: MethodMetrics получается один раз при сборке декоратора,
+ * дальше это System.nanoTime, инкремент в AtomicLongArray и LongAdder.
+ * Счётчик ошибок по классу создаётся при первой ошибке этого класса, потом только ConcurrentHashMap.get.
+ * <p>
+ * Метрики одинаково подключаются ко всем трём вариантам контракта из презентации:
+ * проверяемые исключения (ch4 App1), Try (ch6 App1) и Either (ch6 App2.kt), и их можно сравнить между собой.
+ * <p>
+ * MetricsRegistry и снимки доступны в пакете, их использует экспорт метрик в App17.
+ *
+ * @see MetricsRegistry
+ * @see MethodMetrics
+ * @see App17
+ */
+public class App16 {
+    public static void main(String[] args) {
+        MetricsRegistry registry = new MetricsRegistry();
+
+        Checked.BookService checked = new Checked.BookService(
+                new Checked.MeteredBookRepository(new Checked.FlakyBookRepository(new Backend(10)), registry, "checked", "db"),
+                new Checked.MeteredBookRepository(new Checked.FlakyBookRepository(new Backend(0)), registry, "checked", "json"),
+                registry
+        );
+        VavrTry.BookService vavr = new VavrTry.BookService(
+                new VavrTry.MeteredBookRepository(new VavrTry.FlakyBookRepository(new Backend(10)), registry, "try", "db"),
+                new VavrTry.MeteredBookRepository(new VavrTry.FlakyBookRepository(new Backend(0)), registry, "try", "json"),
+                registry
+        );
+        ArrowEither.BookService arrow = new ArrowEither.BookService(
+                new ArrowEither.MeteredBookRepository(new ArrowEither.FlakyBookRepository(new Backend(10)), registry, "either", "db"),
+                new ArrowEither.MeteredBookRepository(new ArrowEither.FlakyBookRepository(new Backend(0)), registry, "either", "json"),
+                registry
+        );
+
+        for (int i = 0; i < 10_000; i++) {
+            String id = String.valueOf(i % 3);
+            try {
+                checked.bookById(id);
+            } catch (Checked.BookServiceException ex) {
+                System.err.println(ex.getMessage());
+            }
+            vavr.bookById(id);
+            arrow.bookById(id);
+        }
+        try {
+            checked.all();
+        } catch (Checked.BookServiceException ex) {
+            System.err.println(ex.getMessage());
+        }
+
+        for (MethodSnapshot method : registry.snapshot()) {
+            System.out.println(method);
+        }
+    }
+
+    /**
+     * Метрики одного метода одного компонента.
+     * <p>
+     * Все методы записи потокобезопасны и не блокируют.
+     */
+    static final class MethodMetrics {
+        private final String variant;
+        private final String component;
+        private final String method;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder fallbacks = new LongAdder();
+        private final ConcurrentMap<Class<?>, LongAdder> failures = new ConcurrentHashMap<>();
+
+        MethodMetrics(String variant, String component, String method) {
+            this.variant = variant;
+            this.component = component;
+            this.method = method;
+        }
+
+        void success(long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+            successes.increment();
+        }
+
+        void failure(long startNanos, Throwable error) {
+            latency.record(System.nanoTime() - startNanos);
+            Class<?> type = error.getClass();
+            LongAdder counter = failures.get(type);
+            if (counter == null) {
+                counter = failures.computeIfAbsent(type, t -> new LongAdder());
+            }
+            counter.increment();
+        }
+
+        void fallback() {
+            fallbacks.increment();
+        }
+
+        String variant() {
+            return variant;
+        }
+
+        String component() {
+            return component;
+        }
+
+        String method() {
+            return method;
+        }
+
+        long successes() {
+            return successes.sum();
+        }
+
+        long fallbacks() {
+            return fallbacks.sum();
+        }
+
+        /**
+         * Живое представление счётчиков ошибок, без копирования.
+         */
+        Map<Class<?>, LongAdder> failures() {
+            return failures;
+        }
+
+        LatencyHistogram latency() {
+            return latency;
+        }
+
+        MethodSnapshot snapshot() {
+            Map<String, Long> failuresByType = new LinkedHashMap<>();
+            for (Map.Entry<Class<?>, LongAdder> entry : failures.entrySet()) {
+                failuresByType.put(entry.getKey().getName(), entry.getValue().sum());
+            }
+            return new MethodSnapshot(
+                    variant,
+                    component,
+                    method,
+                    successes.sum(),
+                    Collections.unmodifiableMap(failuresByType),
+                    fallbacks.sum(),
+                    latency.snapshot()
+            );
+        }
+    }
+
+    /**
+     * Все метрики приложения.
+     * <p>
+     * method(...) вызывается при сборке компонентов, а не на каждом вызове: повторный вызов с теми же именами
+     * вернёт тот же объект.
+     */
+    static final class MetricsRegistry {
+        private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+        MethodMetrics method(String variant, String component, String method) {
+            return methods.computeIfAbsent(
+                    variant + '/' + component + '/' + method,
+                    key -> new MethodMetrics(variant, component, method)
+            );
+        }
+
+        /**
+         * Живое представление без копирования, для экспорта в заранее выделенные буферы.
+         */
+        Iterable<MethodMetrics> methods() {
+            return methods.values();
+        }
+
+        List<MethodSnapshot> snapshot() {
+            List<MethodSnapshot> snapshots = new ArrayList<>(methods.size());
+            for (MethodMetrics metrics : methods.values()) {
+                snapshots.add(metrics.snapshot());
+            }
+            snapshots.sort((a, b) -> (a.variant + a.component + a.method).compareTo(b.variant + b.component + b.method));
+            return snapshots;
+        }
+    }
+
+    static final class MethodSnapshot {
+        final String variant;
+        final String component;
+        final String method;
+        final long successes;
+        final Map<String, Long> failures;
+        final long fallbacks;
+        final HistogramSnapshot latency;
+
+        MethodSnapshot(
+                String variant,
+                String component,
+                String method,
+                long successes,
+                Map<String, Long> failures,
+                long fallbacks,
+                HistogramSnapshot latency
+        ) {
+            this.variant = variant;
+            this.component = component;
+            this.method = method;
+            this.successes = successes;
+            this.failures = failures;
+            this.fallbacks = fallbacks;
+            this.latency = latency;
+        }
+
+        long failureCount() {
+            long sum = 0;
+            for (long count : failures.values()) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-7s %-12s %-9s ok %6d failed %5d fallbacks %5d p50 %6.1f us p99 %6.1f us %s",
+                    variant, component, method, successes, failureCount(), fallbacks,
+                    latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, failures);
+        }
+    }
+
+    /**
+     * Логарифмически-линейная гистограмма в наносекундах: диапазоны степеней двойки по 64 корзины,
+     * погрешность не больше 1/64.
+     */
+    static final class LatencyHistogram {
+        static final int PRECISION_BITS = 7;
+        static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+        static final int HALF = SUB_BUCKETS / 2;
+        static final int BUCKETS = (64 - PRECISION_BITS + 2) * HALF;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // повторяем, пока не обновим максимум
+            }
+        }
+
+        /**
+         * Снимок не атомарен относительно записи: счётчики корзин, сумма и максимум читаются по очереди.
+         * Для отчёта это допустимо.
+         */
+        HistogramSnapshot snapshot() {
+            long[] copy = new long[BUCKETS];
+            snapshotInto(copy);
+            return new HistogramSnapshot(copy, sum.sum(), max.get());
+        }
+
+        void snapshotInto(long[] target) {
+            for (int i = 0; i < BUCKETS; i++) {
+                target[i] = counts.get(i);
+            }
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / HALF - 1;
+            long subBucket = index - (long) shift * HALF;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    static final class HistogramSnapshot {
+        final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        HistogramSnapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(LatencyHistogram.upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Общее для всех вариантов хранилище в памяти: каждый failEvery-й вызов падает с SQLException.
+     */
+    static final class Backend {
+        private final int failEvery;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Map<String, String> books = new LinkedHashMap<>();
+
+        Backend(int failEvery) {
+            this.failEvery = failEvery;
+            books.put("1", "Book 1");
+            books.put("2", "Book 2");
+        }
+
+        List<String> all() throws SQLException {
+            check();
+            return new ArrayList<>(books.values());
+        }
+
+        String bookById(String id) throws SQLException {
+            check();
+            return books.get(id);
+        }
+
+        private void check() throws SQLException {
+            if (failEvery > 0 && calls.incrementAndGet() % failEvery == 0) {
+                throw new SQLException("Connection refused");
+            }
+        }
+    }
+
+    /**
+     * Проверяемые исключения, как в ch4 App1.
+     */
+    static final class Checked {
+        interface BookRepository {
+            List<String> all() throws BookRepositoryException;
+
+            String bookById(String id) throws BookRepositoryException;
+        }
+
+        static class ClientException extends Exception {
+            private final String clientMessage;
+
+            ClientException(String message, String clientMessage, Throwable cause) {
+                super(message, cause);
+                this.clientMessage = clientMessage;
+            }
+
+            String getClientMessage() {
+                return clientMessage;
+            }
+        }
+
+        static class BookRepositoryException extends ClientException {
+            BookRepositoryException(String message, String clientMessage, Throwable cause) {
+                super(message, clientMessage, cause);
+            }
+        }
+
+        static class BookServiceException extends ClientException {
+            BookServiceException(String message, String clientMessage, Throwable cause) {
+                super(message, clientMessage, cause);
+            }
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository;
+            private final BookRepository secondaryBookRepository;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository, MetricsRegistry registry) {
+                this.primaryBookRepository = primaryBookRepository;
+                this.secondaryBookRepository = secondaryBookRepository;
+                this.allMetrics = registry.method("checked", "BookService", "all");
+                this.bookByIdMetrics = registry.method("checked", "BookService", "bookById");
+            }
+
+            List<String> all() throws BookServiceException {
+                long start = System.nanoTime();
+                try {
+                    List<String> books;
+                    try {
+                        books = primaryBookRepository.all();
+                    } catch (BookRepositoryException ex) {
+                        allMetrics.fallback();
+                        books = secondaryBookRepository.all();
+                    }
+                    allMetrics.success(start);
+                    return books;
+                } catch (BookRepositoryException ex) {
+                    BookServiceException error =
+                            new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+                    allMetrics.failure(start, error);
+                    throw error;
+                }
+            }
+
+            String bookById(String id) throws BookServiceException {
+                long start = System.nanoTime();
+                try {
+                    String book;
+                    try {
+                        book = primaryBookRepository.bookById(id);
+                    } catch (BookRepositoryException ex) {
+                        bookByIdMetrics.fallback();
+                        book = secondaryBookRepository.bookById(id);
+                    }
+                    bookByIdMetrics.success(start);
+                    return book;
+                } catch (BookRepositoryException ex) {
+                    BookServiceException error = new BookServiceException(
+                            "Error when get book by " + id,
+                            "Error when get book, please try later",
+                            ex
+                    );
+                    bookByIdMetrics.failure(start, error);
+                    throw error;
+                }
+            }
+        }
+
+        /**
+         * Непроверяемые исключения тоже считаются ошибками хранилища и пробрасываются дальше без изменений.
+         */
+        static class MeteredBookRepository implements BookRepository {
+            private final BookRepository delegate;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            MeteredBookRepository(BookRepository delegate, MetricsRegistry registry, String variant, String component) {
+                this.delegate = delegate;
+                this.allMetrics = registry.method(variant, component, "all");
+                this.bookByIdMetrics = registry.method(variant, component, "bookById");
+            }
+
+            @Override
+            public List<String> all() throws BookRepositoryException {
+                long start = System.nanoTime();
+                try {
+                    List<String> books = delegate.all();
+                    allMetrics.success(start);
+                    return books;
+                } catch (BookRepositoryException | RuntimeException e) {
+                    allMetrics.failure(start, e);
+                    throw e;
+                }
+            }
+
+            @Override
+            public String bookById(String id) throws BookRepositoryException {
+                long start = System.nanoTime();
+                try {
+                    String book = delegate.bookById(id);
+                    bookByIdMetrics.success(start);
+                    return book;
+                } catch (BookRepositoryException | RuntimeException e) {
+                    bookByIdMetrics.failure(start, e);
+                    throw e;
+                }
+            }
+        }
+
+        static class FlakyBookRepository implements BookRepository {
+            private final Backend backend;
+
+            FlakyBookRepository(Backend backend) {
+                this.backend = backend;
+            }
+
+            @Override
+            public List<String> all() throws BookRepositoryException {
+                try {
+                    return backend.all();
+                } catch (SQLException e) {
+                    throw new BookRepositoryException("Error when get books", "Error when get books, please try later", e);
+                }
+            }
+
+            @Override
+            public String bookById(String id) throws BookRepositoryException {
+                try {
+                    return backend.bookById(id);
+                } catch (SQLException e) {
+                    throw new BookRepositoryException(
+                            "Error when get book by " + id,
+                            "Error when get book, please try later",
+                            e
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * Try из vavr, как в ch6 App1. Второе хранилище вызывается через orElse.
+     */
+    static final class VavrTry {
+        interface BookRepository {
+            Try<List<String>> all();
+
+            Try<String> bookById(String id);
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository;
+            private final BookRepository secondaryBookRepository;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository, MetricsRegistry registry) {
+                this.primaryBookRepository = primaryBookRepository;
+                this.secondaryBookRepository = secondaryBookRepository;
+                this.allMetrics = registry.method("try", "BookService", "all");
+                this.bookByIdMetrics = registry.method("try", "BookService", "bookById");
+            }
+
+            Try<List<String>> all() {
+                long start = System.nanoTime();
+                Try<List<String>> books = primaryBookRepository.all();
+                if (books.isFailure()) {
+                    allMetrics.fallback();
+                    books = secondaryBookRepository.all();
+                }
+                return record(allMetrics, start, books);
+            }
+
+            Try<String> bookById(String id) {
+                long start = System.nanoTime();
+                Try<String> book = primaryBookRepository.bookById(id);
+                if (book.isFailure()) {
+                    bookByIdMetrics.fallback();
+                    book = secondaryBookRepository.bookById(id);
+                }
+                return record(bookByIdMetrics, start, book);
+            }
+        }
+
+        static class MeteredBookRepository implements BookRepository {
+            private final BookRepository delegate;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            MeteredBookRepository(BookRepository delegate, MetricsRegistry registry, String variant, String component) {
+                this.delegate = delegate;
+                this.allMetrics = registry.method(variant, component, "all");
+                this.bookByIdMetrics = registry.method(variant, component, "bookById");
+            }
+
+            @Override
+            public Try<List<String>> all() {
+                return record(allMetrics, System.nanoTime(), delegate.all());
+            }
+
+            @Override
+            public Try<String> bookById(String id) {
+                return record(bookByIdMetrics, System.nanoTime(), delegate.bookById(id));
+            }
+        }
+
+        /**
+         * Без onSuccess/onFailure: лямбды, захватывающие start, создавались бы на каждый вызов.
+         */
+        private static <T> Try<T> record(MethodMetrics metrics, long start, Try<T> result) {
+            if (result.isSuccess()) {
+                metrics.success(start);
+            } else {
+                metrics.failure(start, result.getCause());
+            }
+            return result;
+        }
+
+        static class FlakyBookRepository implements BookRepository {
+            private final Backend backend;
+
+            FlakyBookRepository(Backend backend) {
+                this.backend = backend;
+            }
+
+            @Override
+            public Try<List<String>> all() {
+                return Try.of(backend::all);
+            }
+
+            @Override
+            public Try<String> bookById(String id) {
+                return Try.of(() -> backend.bookById(id));
+            }
+        }
+    }
+
+    /**
+     * Either из Arrow, как в ch6 App2.kt.
+     */
+    static final class ArrowEither {
+        static class BookRepositoryException extends Exception {
+            BookRepositoryException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        static class BookServiceException extends Exception {
+            BookServiceException(String message, Exception cause) {
+                super(message, cause);
+            }
+        }
+
+        interface BookRepository {
+            Either<BookRepositoryException, List<String>> all();
+
+            Either<BookRepositoryException, String> bookById(String id);
+        }
+
+        /**
+         * Either.Left и Either.Right из Kotlin видны в Java как наследники Either без параметров типа,
+         * поэтому непроверяемое приведение собрано в этих двух методах.
+         */
+        @SuppressWarnings("unchecked")
+        static <E, T> Either<E, T> left(E error) {
+            return (Either<E, T>) new Either.Left<>(error);
+        }
+
+        @SuppressWarnings("unchecked")
+        static <E, T> Either<E, T> right(T value) {
+            return (Either<E, T>) new Either.Right<>(value);
+        }
+
+        static class BookService {
+            private final BookRepository primaryBookRepository;
+            private final BookRepository secondaryBookRepository;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository, MetricsRegistry registry) {
+                this.primaryBookRepository = primaryBookRepository;
+                this.secondaryBookRepository = secondaryBookRepository;
+                this.allMetrics = registry.method("either", "BookService", "all");
+                this.bookByIdMetrics = registry.method("either", "BookService", "bookById");
+            }
+
+            Either<BookServiceException, List<String>> all() {
+                long start = System.nanoTime();
+                Either<BookRepositoryException, List<String>> books = primaryBookRepository.all();
+                if (books instanceof Either.Left) {
+                    allMetrics.fallback();
+                    books = secondaryBookRepository.all();
+                }
+                return record(allMetrics, start, toService(books, "Error from service when get books"));
+            }
+
+            Either<BookServiceException, String> bookById(String id) {
+                long start = System.nanoTime();
+                Either<BookRepositoryException, String> book = primaryBookRepository.bookById(id);
+                if (book instanceof Either.Left) {
+                    bookByIdMetrics.fallback();
+                    book = secondaryBookRepository.bookById(id);
+                }
+                return record(bookByIdMetrics, start, toService(book, "Error from service when get book"));
+            }
+
+            @SuppressWarnings("unchecked")
+            private static <T> Either<BookServiceException, T> toService(
+                    Either<BookRepositoryException, T> result,
+                    String message
+            ) {
+                if (result instanceof Either.Right) {
+                    return (Either<BookServiceException, T>) (Either<?, T>) result;
+                }
+                return new Either.Left<>(new BookServiceException(
+                        message,
+                        ((Either.Left<BookRepositoryException>) result).getValue()
+                ));
+            }
+        }
+
+        static class MeteredBookRepository implements BookRepository {
+            private final BookRepository delegate;
+            private final MethodMetrics allMetrics;
+            private final MethodMetrics bookByIdMetrics;
+
+            MeteredBookRepository(BookRepository delegate, MetricsRegistry registry, String variant, String component) {
+                this.delegate = delegate;
+                this.allMetrics = registry.method(variant, component, "all");
+                this.bookByIdMetrics = registry.method(variant, component, "bookById");
+            }
+
+            @Override
+            public Either<BookRepositoryException, List<String>> all() {
+                return record(allMetrics, System.nanoTime(), delegate.all());
+            }
+
+            @Override
+            public Either<BookRepositoryException, String> bookById(String id) {
+                return record(bookByIdMetrics, System.nanoTime(), delegate.bookById(id));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <E extends Exception, T> Either<E, T> record(MethodMetrics metrics, long start, Either<E, T> result) {
+            if (result instanceof Either.Right) {
+                metrics.success(start);
+            } else {
+                metrics.failure(start, ((Either.Left<E>) result).getValue());
+            }
+            return result;
+        }
+
+        static class FlakyBookRepository implements BookRepository {
+            private final Backend backend;
+
+            FlakyBookRepository(Backend backend) {
+                this.backend = backend;
+            }
+
+            @Override
+            public Either<BookRepositoryException, List<String>> all() {
+                try {
+                    return right(backend.all());
+                } catch (SQLException e) {
+                    return left(new BookRepositoryException("Error when get books", e));
+                }
+            }
+
+            @Override
+            public Either<BookRepositoryException, String> bookById(String id) {
+                try {
+                    return right(backend.bookById(id));
+                } catch (SQLException e) {
+                    return left(new BookRepositoryException("Error when get book", e));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики наружу.
+ * <p>
+ * Метрики из App16 нужно забирать в Prometheus. Для этого не нужен веб-фреймворк:
+ * в JDK есть com.sun.net.httpserver.HttpServer, а формат Prometheus - обычный текст.
+ * <p>
+ * PrometheusExporter отдаёт по GET /metrics счётчики вызовов, ошибок по классу исключения,
+ * переключений на второе хранилище и гистограммы задержек.
+ * <p>
+ * Prometheus опрашивает приложение каждые несколько секунд, поэтому отрисовка не должна нагружать сборщик мусора:
+ * гистограммы копируются в заранее выделенный массив, текст пишется в один и тот же StringBuilder
+ * и кодируется в один и тот же массив байт, а строки меток собираются один раз на метод.
+ * Отрисовки выполняются по очереди, одним потоком.
+ *
+ * @see PrometheusExporter
+ * @see PrometheusRenderer
+ * @see App18
+ */
+public class App17 {
+    public static void main(String[] args) throws IOException {
+        App16.MetricsRegistry registry = new App16.MetricsRegistry();
+        App16.Checked.BookService service = new App16.Checked.BookService(
+                new App16.Checked.MeteredBookRepository(
+                        new App16.Checked.FlakyBookRepository(new App16.Backend(10)), registry, "checked", "db"),
+                new App16.Checked.MeteredBookRepository(
+                        new App16.Checked.FlakyBookRepository(new App16.Backend(0)), registry, "checked", "json"),
+                registry
+        );
+
+        try (PrometheusExporter exporter = PrometheusExporter.start(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                registry
+        )) {
+            for (int i = 0; i < 1000; i++) {
+                try {
+                    service.bookById("1");
+                } catch (App16.Checked.BookServiceException ex) {
+                    System.err.println(ex.getClientMessage());
+                }
+            }
+            System.out.println(scrape(exporter.port()));
+        }
+    }
+
+    private static String scrape(int port) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        try (InputStream body = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            body.transferTo(out);
+            return out.toString(StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * HTTP сервер с единственным адресом /metrics.
+     */
+    static final class PrometheusExporter implements AutoCloseable {
+        private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+        private final HttpServer server;
+        private final ExecutorService executor;
+
+        private PrometheusExporter(HttpServer server, ExecutorService executor) {
+            this.server = server;
+            this.executor = executor;
+        }
+
+        static PrometheusExporter start(InetSocketAddress address, App16.MetricsRegistry registry) throws IOException {
+            PrometheusRenderer renderer = new PrometheusRenderer(registry);
+            ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "prometheus-exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            HttpServer server = HttpServer.create(address, 0);
+            server.createContext("/metrics", exchange -> handle(exchange, renderer));
+            server.setExecutor(executor);
+            server.start();
+            return new PrometheusExporter(server, executor);
+        }
+
+        int port() {
+            return server.getAddress().getPort();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executor.shutdown();
+        }
+
+        private static void handle(HttpExchange exchange, PrometheusRenderer renderer) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "GET");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                int length = renderer.render();
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(renderer.bytes(), 0, length);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Текстовый формат Prometheus 0.0.4.
+     * <p>
+     * Гистограмма App16 содержит тысячи мелких корзин, наружу отдаются только стандартные границы le:
+     * каждая мелкая корзина заранее отнесена к первой границе, не меньшей её верхнего края.
+     * <p>
+     * Не потокобезопасен, вызывается из одного потока экспорта.
+     */
+    static final class PrometheusRenderer {
+        private static final String[] LE = {
+                "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01",
+                "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10", "+Inf"
+        };
+        private static final int[] EXPORT_BUCKET = exportBuckets();
+
+        private final App16.MetricsRegistry registry;
+        private final long[] fine = new long[App16.LatencyHistogram.BUCKETS];
+        private final long[] cumulative = new long[LE.length];
+        private final StringBuilder text = new StringBuilder(16 * 1024);
+        private final Map<App16.MethodMetrics, String> labels = new IdentityHashMap<>();
+        private final Map<Class<?>, String> exceptionLabels = new HashMap<>();
+        private byte[] bytes = new byte[16 * 1024];
+
+        PrometheusRenderer(App16.MetricsRegistry registry) {
+            this.registry = registry;
+        }
+
+        /**
+         * @return длина ответа в bytes()
+         */
+        int render() {
+            text.setLength(0);
+
+            family("book_calls_total", "counter", "Calls by outcome");
+            for (App16.MethodMetrics method : registry.methods()) {
+                long failures = 0;
+                for (LongAdder counter : method.failures().values()) {
+                    failures += counter.sum();
+                }
+                sample("book_calls_total", method, ",outcome=\"success\"", method.successes());
+                sample("book_calls_total", method, ",outcome=\"failure\"", failures);
+            }
+
+            family("book_call_failures_total", "counter", "Failures by exception class");
+            for (App16.MethodMetrics method : registry.methods()) {
+                for (Map.Entry<Class<?>, LongAdder> failure : method.failures().entrySet()) {
+                    sample("book_call_failures_total", method, exceptionLabel(failure.getKey()), failure.getValue().sum());
+                }
+            }
+
+            family("book_fallbacks_total", "counter", "Switches to the secondary repository");
+            for (App16.MethodMetrics method : registry.methods()) {
+                sample("book_fallbacks_total", method, "", method.fallbacks());
+            }
+
+            family("book_call_duration_seconds", "histogram", "Call latency");
+            for (App16.MethodMetrics method : registry.methods()) {
+                histogram(method);
+            }
+
+            return encode();
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        private void family(String name, String type, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private void sample(String name, App16.MethodMetrics method, String extraLabels, long value) {
+            text.append(name).append('{').append(labels(method)).append(extraLabels).append("} ").append(value).append('\n');
+        }
+
+        private void histogram(App16.MethodMetrics method) {
+            App16.LatencyHistogram latency = method.latency();
+            long sum = latency.sum();
+            latency.snapshotInto(fine);
+            for (int i = 0; i < cumulative.length; i++) {
+                cumulative[i] = 0;
+            }
+            for (int i = 0; i < fine.length; i++) {
+                cumulative[EXPORT_BUCKET[i]] += fine[i];
+            }
+            long count = 0;
+            String label = labels(method);
+            for (int i = 0; i < LE.length; i++) {
+                count += cumulative[i];
+                text.append("book_call_duration_seconds_bucket{").append(label)
+                        .append(",le=\"").append(LE[i]).append("\"} ").append(count).append('\n');
+            }
+            text.append("book_call_duration_seconds_sum{").append(label).append("} ");
+            appendSeconds(sum);
+            text.append('\n');
+            text.append("book_call_duration_seconds_count{").append(label).append("} ").append(count).append('\n');
+        }
+
+        /**
+         * Целая и дробная части отдельно: StringBuilder.append(double) не обещает обходиться без аллокаций.
+         */
+        private void appendSeconds(long nanos) {
+            text.append(nanos / 1_000_000_000L).append('.');
+            long fraction = nanos % 1_000_000_000L;
+            for (long digit = 100_000_000L; digit > 0; digit /= 10) {
+                text.append((char) ('0' + fraction / digit % 10));
+            }
+        }
+
+        private String labels(App16.MethodMetrics method) {
+            String label = labels.get(method);
+            if (label == null) {
+                label = "variant=\"" + escape(method.variant())
+                        + "\",component=\"" + escape(method.component())
+                        + "\",method=\"" + escape(method.method()) + '"';
+                labels.put(method, label);
+            }
+            return label;
+        }
+
+        private String exceptionLabel(Class<?> type) {
+            return exceptionLabels.computeIfAbsent(type, t -> ",exception=\"" + escape(t.getName()) + '"');
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+
+        /**
+         * UTF-8 в переиспользуемый массив. Суррогатные пары в метках не ожидаются и кодируются как '?'.
+         */
+        private int encode() {
+            int length = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (length + 3 > bytes.length) {
+                    byte[] grown = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, grown, 0, length);
+                    bytes = grown;
+                }
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xc0 | (c >> 6));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[length++] = '?';
+                } else {
+                    bytes[length++] = (byte) (0xe0 | (c >> 12));
+                    bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return length;
+        }
+
+        private static int[] exportBuckets() {
+            long[] bounds = new long[LE.length - 1];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = Math.round(Double.parseDouble(LE[i]) * 1e9);
+            }
+            int[] mapping = new int[App16.LatencyHistogram.BUCKETS];
+            for (int i = 0; i < mapping.length; i++) {
+                // верхние корзины выходят за long, они попадают в +Inf
+                long upper = App16.LatencyHistogram.upperBound(i);
+                if (upper < 0) {
+                    upper = Long.MAX_VALUE;
+                }
+                int bucket = 0;
+                while (bucket < bounds.length && upper > bounds[bucket]) {
+                    bucket++;
+                }
+                mapping[i] = bucket;
+            }
+            return mapping;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Вместо тысячи одинаковых стеков.
+ * <p>
+ * Во всех примерах исключение обрабатывается так: ex.printStackTrace(). Во время аварии хранилища
+ * это тысячи одинаковых стеков по несколько килобайт в секунду, а запись в stderr синхронная:
+ * потоки запросов стоят в очереди на PrintStream.
+ * <p>
+ * ErrorAggregator заменяет ex.printStackTrace() в месте обработки на errors.report(ex):
+ * 1. у цепочки исключений считается отпечаток - типы и верхние кадры каждого исключения вместе с причинами
+ * 2. по отпечатку увеличивается счётчик, первое исключение сохраняется как образец
+ * 3. фоновый поток раз в период пишет сводку: сколько раз встретился каждый отпечаток,
+ * а для нового отпечатка - один полный стек образца
+ * <p>
+ * Поток запроса ничего не пишет и не ждёт: report - это отпечаток, ConcurrentHashMap.get и LongAdder.
+ * Дороже всего в нём отпечаток: см. ErrorAggregator#fingerprint(Throwable).
+ * Таблица отпечатков ограничена, отпечатки сверх лимита только подсчитываются.
+ *
+ * @see ErrorAggregator
+ * @see ErrorAggregator#report(Throwable)
+ * @see App19
+ */
+public class App18 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        BookService service = new BookService(new FailingBookRepository(), new FailingBookRepository());
+        int threads = 8;
+        int requests = 20_000;
+
+        try (ErrorAggregator errors = ErrorAggregator.start(System.err, Duration.ofMillis(500), 1024, 8)) {
+            ExecutorService clients = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                clients.execute(() -> {
+                    try {
+                        for (int i = 0; i < requests; i++) {
+                            try {
+                                if (i % 100 == 0) {
+                                    service.all();
+                                } else {
+                                    service.bookById(String.valueOf(i));
+                                }
+                            } catch (BookServiceException ex) {
+                                errors.report(ex);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            clients.shutdown();
+            long elapsed = System.nanoTime() - start;
+
+            try {
+                service.bookById("1");
+            } catch (BookServiceException ex) {
+                StringWriter trace = new StringWriter();
+                ex.printStackTrace(new PrintWriter(trace));
+                System.out.printf("%d failed requests in %d ms, printStackTrace would write %d MB to stderr%n",
+                        threads * requests,
+                        TimeUnit.NANOSECONDS.toMillis(elapsed),
+                        (long) trace.getBuffer().length() * threads * requests / (1024 * 1024));
+            }
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Сводка ошибок по отпечаткам.
+     * <p>
+     * Отпечаток не зависит от сообщения: "Error when get book by 1" и "... by 2" - это одна и та же ошибка.
+     * Образец хранит сообщение первого исключения.
+     * <p>
+     * Отпечаток, который не встречался idleWindows периодов подряд, удаляется из таблицы в два шага,
+     * чтобы не потерять счёт потока запроса, который уже достал запись из таблицы:
+     * 1. запись помечается retiring и остаётся в таблице. Поток запроса, увидевший пометку, заменяет её новой записью
+     * 2. через период запись удаляется из таблицы, а всё, что успели насчитать в неё после пометки, попадает в сводку
+     * Потеряться может только счёт потока, который держал запись дольше целого периода между get и increment.
+     * При следующем появлении отпечатка его стек будет напечатан снова.
+     * <p>
+     * Место в таблице резервируется до вставки, так что таблица не превышает maxFingerprints и под конкуренцией.
+     */
+    static final class ErrorAggregator implements AutoCloseable {
+        private static final int FRAMES_PER_THROWABLE = 5;
+        private static final int MAX_CAUSE_DEPTH = 8;
+
+        private final PrintStream out;
+        private final int maxFingerprints;
+        private final int idleWindows;
+        private final ConcurrentMap<Long, Aggregate> aggregates = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final List<Aggregate> retiring = new ArrayList<>();
+        private final LongAdder dropped = new LongAdder();
+        private final ScheduledExecutorService summaries;
+
+        private ErrorAggregator(PrintStream out, int maxFingerprints, int idleWindows) {
+            this.out = out;
+            this.maxFingerprints = maxFingerprints;
+            this.idleWindows = idleWindows;
+            this.summaries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "error-aggregator");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        static ErrorAggregator start(PrintStream out, Duration period, int maxFingerprints, int idleWindows) {
+            ErrorAggregator aggregator = new ErrorAggregator(out, maxFingerprints, idleWindows);
+            aggregator.summaries.scheduleAtFixedRate(
+                    aggregator::summarize,
+                    period.toMillis(),
+                    period.toMillis(),
+                    TimeUnit.MILLISECONDS
+            );
+            return aggregator;
+        }
+
+        /**
+         * Замена ex.printStackTrace() в месте обработки исключения.
+         */
+        void report(Throwable error) {
+            long fingerprint = fingerprint(error);
+            Aggregate aggregate = aggregates.get(fingerprint);
+            if (aggregate == null || aggregate.retiring) {
+                aggregate = admit(fingerprint, error);
+                if (aggregate == null) {
+                    dropped.increment();
+                    return;
+                }
+            }
+            aggregate.inWindow.increment();
+        }
+
+        /**
+         * Медленный путь: новый отпечаток или запись, помеченная к удалению.
+         *
+         * @return запись или null, если таблица заполнена
+         */
+        private Aggregate admit(long fingerprint, Throwable error) {
+            while (true) {
+                Aggregate current = aggregates.get(fingerprint);
+                if (current != null) {
+                    if (!current.retiring) {
+                        return current;
+                    }
+                    // замена занимает то же место в таблице
+                    Aggregate fresh = new Aggregate(fingerprint, error);
+                    if (aggregates.replace(fingerprint, current, fresh)) {
+                        return fresh;
+                    }
+                    continue;
+                }
+                if (!reserve()) {
+                    return null;
+                }
+                Aggregate created = new Aggregate(fingerprint, error);
+                if (aggregates.putIfAbsent(fingerprint, created) == null) {
+                    return created;
+                }
+                size.decrementAndGet();
+            }
+        }
+
+        private boolean reserve() {
+            int current;
+            do {
+                current = size.get();
+                if (current >= maxFingerprints) {
+                    return false;
+                }
+            } while (!size.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        /**
+         * Последняя сводка пишется при закрытии, чтобы не потерять ошибки последнего периода.
+         */
+        @Override
+        public void close() {
+            summaries.shutdown();
+            try {
+                summaries.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            summarize();
+        }
+
+        /**
+         * 64-битный хеш по типам и верхним кадрам всей цепочки причин, без создания строк.
+         * <p>
+         * Хешируются только FRAMES_PER_THROWABLE кадров, но взять у готового исключения часть стека нельзя:
+         * первый getStackTrace() превращает весь снятый стек в StackTraceElement[] (имена классов, методов и номера строк
+         * для каждого кадра), а каждый вызов возвращает копию этого массива. Это основная цена report,
+         * и она растёт с глубиной стека и длиной цепочки. Массив остаётся в исключении,
+         * поэтому печать образца в сводке его уже не строит. Всё равно это намного дешевле, чем форматировать стек
+         * и писать его в stderr под блокировкой PrintStream.
+         */
+        static long fingerprint(Throwable error) {
+            long hash = 0xcbf29ce484222325L;
+            Throwable current = error;
+            for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+                hash = mix(hash, current.getClass().getName().hashCode());
+                StackTraceElement[] frames = current.getStackTrace();
+                for (int i = 0; i < frames.length && i < FRAMES_PER_THROWABLE; i++) {
+                    hash = mix(hash, frames[i].getClassName().hashCode());
+                    hash = mix(hash, frames[i].getMethodName().hashCode());
+                    hash = mix(hash, frames[i].getLineNumber());
+                }
+                Throwable cause = current.getCause();
+                current = cause == current ? null : cause;
+            }
+            return hash;
+        }
+
+        private static long mix(long hash, int value) {
+            hash ^= value;
+            hash *= 0x100000001b3L;
+            return hash ^ (hash >>> 29);
+        }
+
+        private synchronized void summarize() {
+            List<Aggregate> active = new ArrayList<>();
+            long total = 0;
+            for (Aggregate retired : retiring) {
+                if (aggregates.remove(retired.fingerprint, retired)) {
+                    size.decrementAndGet();
+                }
+                long late = retired.inWindow.sumThenReset();
+                if (late > 0) {
+                    retired.windowCount = late;
+                    retired.total += late;
+                    active.add(retired);
+                    total += late;
+                }
+            }
+            retiring.clear();
+            for (Aggregate aggregate : aggregates.values()) {
+                if (aggregate.retiring) {
+                    continue;
+                }
+                long count = aggregate.inWindow.sumThenReset();
+                if (count > 0) {
+                    aggregate.windowCount = count;
+                    aggregate.total += count;
+                    aggregate.idle = 0;
+                    active.add(aggregate);
+                    total += count;
+                } else if (++aggregate.idle >= idleWindows) {
+                    aggregate.retiring = true;
+                    retiring.add(aggregate);
+                }
+            }
+            long droppedInWindow = dropped.sumThenReset();
+            if (active.isEmpty() && droppedInWindow == 0) {
+                return;
+            }
+            active.sort(Collections.reverseOrder((a, b) -> Long.compare(a.windowCount, b.windowCount)));
+            out.printf("Errors: %d occurrences of %d fingerprints, %d not fingerprinted (table full)%n",
+                    total, active.size(), droppedInWindow);
+            for (Aggregate aggregate : active) {
+                out.printf("  %8d (total %d) [%016x] %s%n",
+                        aggregate.windowCount, aggregate.total, aggregate.fingerprint, aggregate.chain);
+                if (!aggregate.printed) {
+                    aggregate.printed = true;
+                    aggregate.sample.printStackTrace(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Счётчик одного отпечатка. inWindow пишут потоки запросов, retiring читают потоки запросов,
+     * остальные поля - только поток сводок.
+     */
+    private static final class Aggregate {
+        private final long fingerprint;
+        private final Throwable sample;
+        private final String chain;
+        private final LongAdder inWindow = new LongAdder();
+        private volatile boolean retiring;
+        private long windowCount;
+        private long total;
+        private int idle;
+        private boolean printed;
+
+        Aggregate(long fingerprint, Throwable sample) {
+            this.fingerprint = fingerprint;
+            this.sample = sample;
+            this.chain = chain(sample);
+        }
+
+        private static String chain(Throwable error) {
+            StringBuilder chain = new StringBuilder(error.toString());
+            Map<Throwable, Boolean> seen = new IdentityHashMap<>();
+            seen.put(error, Boolean.TRUE);
+            for (Throwable cause = error.getCause(); cause != null && seen.put(cause, Boolean.TRUE) == null; cause = cause.getCause()) {
+                chain.append(" <- ").append(cause.getClass().getSimpleName());
+            }
+            return chain.toString();
+        }
+    }
+
+    private static class FailingBookRepository implements BookRepository {
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get books",
+                    "Error when get books, please try later",
+                    new SQLException("Connection refused")
+            );
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get book by " + id,
+                    "Error when get book, please try later",
+                    new SQLException("Connection refused")
+            );
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Сообщения по требованию.
+ * <p>
+ * На каждом отказе мы собираем строки: "Error when get book by " + id в хранилище и ещё раз в сервисе,
+ * плюс литерал clientMessage в каждом месте выброса (ch3 App3, ch4 App1). Чаще всего эти строки никто не читает:
+ * вызывающий код смотрит только на тип исключения или на getClientMessage().
+ * <p>
+ * Теперь ClientException хранит не готовое сообщение, а шаблон ErrorMessage и аргументы:
+ * 1. сообщение для разработчика собирается в getMessage() при первом обращении, то есть когда исключение логируют
+ * 2. сообщение для пользователя берётся из ClientMessages - заранее собранного каталога по языкам,
+ * строки каталога создаются и интернируются один раз при загрузке класса
+ * <p>
+ * На пути отказа остаются только объект исключения, массив аргументов и стек.
+ *
+ * @see ErrorMessage
+ * @see ClientMessages
+ * @see ClientException#getMessage()
+ * @see App20
+ */
+public class App19 {
+    private static final SQLException SHARED_CAUSE = new SQLException("Connection refused");
+
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * Шаблоны сообщений. Аргументы подставляются вместо {0}, {1} и так далее.
+     * <p>
+     * render вызывается из getMessage(), то есть из toString() и printStackTrace(), поэтому никогда не бросает:
+     * нечисловые подстановки и номера без аргумента копируются в сообщение как есть.
+     */
+    enum ErrorMessage {
+        GET_BOOKS("Error when get books", ClientMessage.BOOKS_UNAVAILABLE),
+        GET_BOOK_BY_ID("Error when get book by {0}", ClientMessage.BOOK_UNAVAILABLE),
+        GET_BOOKS_FROM_SERVICE("Error when get books", ClientMessage.BOOKS_UNAVAILABLE),
+        GET_BOOK_BY_ID_FROM_SERVICE("Error when get book by {0}", ClientMessage.BOOK_UNAVAILABLE);
+
+        private final String template;
+        private final ClientMessage clientMessage;
+
+        ErrorMessage(String template, ClientMessage clientMessage) {
+            this.template = template;
+            this.clientMessage = clientMessage;
+        }
+
+        String render(Object[] arguments) {
+            if (arguments.length == 0) {
+                return template;
+            }
+            StringBuilder message = new StringBuilder(template.length() + 16 * arguments.length);
+            for (int i = 0; i < template.length(); i++) {
+                char c = template.charAt(i);
+                int end = c == '{' ? template.indexOf('}', i) : -1;
+                int index = end > i + 1 ? argumentIndex(template, i + 1, end) : -1;
+                if (index >= 0) {
+                    message.append(index < arguments.length ? arguments[index] : template.substring(i, end + 1));
+                    i = end;
+                } else {
+                    message.append(c);
+                }
+            }
+            return message.toString();
+        }
+
+        /**
+         * @return номер аргумента или -1, если между скобками не только цифры
+         */
+        private static int argumentIndex(String template, int from, int to) {
+            if (to - from > 9) {
+                return -1;
+            }
+            int index = 0;
+            for (int i = from; i < to; i++) {
+                char digit = template.charAt(i);
+                if (digit < '0' || digit > '9') {
+                    return -1;
+                }
+                index = index * 10 + (digit - '0');
+            }
+            return index;
+        }
+    }
+
+    enum ClientMessage {
+        BOOKS_UNAVAILABLE,
+        BOOK_UNAVAILABLE
+    }
+
+    /**
+     * Каталог сообщений для пользователя.
+     * <p>
+     * Для неизвестного языка используется английский.
+     */
+    static final class ClientMessages {
+        private static final Map<String, Map<ClientMessage, String>> CATALOG;
+
+        static {
+            Map<String, Map<ClientMessage, String>> catalog = new HashMap<>();
+            catalog.put("en", messages(
+                    "Error when get books, please try later",
+                    "Error when get book, please try later"
+            ));
+            catalog.put("ru", messages(
+                    "Не удалось получить список книг, попробуйте позже",
+                    "Не удалось получить книгу, попробуйте позже"
+            ));
+            CATALOG = Collections.unmodifiableMap(catalog);
+        }
+
+        private ClientMessages() {
+        }
+
+        static String get(ClientMessage message, Locale locale) {
+            Map<ClientMessage, String> messages = CATALOG.get(locale.getLanguage());
+            if (messages == null) {
+                messages = CATALOG.get("en");
+            }
+            return messages.get(message);
+        }
+
+        private static Map<ClientMessage, String> messages(String booksUnavailable, String bookUnavailable) {
+            Map<ClientMessage, String> messages = new EnumMap<>(ClientMessage.class);
+            messages.put(ClientMessage.BOOKS_UNAVAILABLE, booksUnavailable);
+            messages.put(ClientMessage.BOOK_UNAVAILABLE, bookUnavailable);
+            return Collections.unmodifiableMap(messages);
+        }
+    }
+
+    /**
+     * Сообщение не передаётся в конструктор Throwable, getMessage() собирает его из шаблона при первом вызове.
+     * Гонка при первом вызове из нескольких потоков безопасна: строки неизменяемы и получаются одинаковыми.
+     */
+    private static class ClientException extends Exception {
+        private static final Object[] NO_ARGUMENTS = new Object[0];
+
+        private final ErrorMessage errorMessage;
+        private final Object[] arguments;
+        private String renderedMessage;
+
+        public ClientException(ErrorMessage errorMessage, Throwable cause, Object... arguments) {
+            super(null, cause);
+            this.errorMessage = errorMessage;
+            this.arguments = arguments.length == 0 ? NO_ARGUMENTS : arguments;
+        }
+
+        @Override
+        public String getMessage() {
+            String message = renderedMessage;
+            if (message == null) {
+                message = errorMessage.render(arguments);
+                renderedMessage = message;
+            }
+            return message;
+        }
+
+        public ErrorMessage getErrorMessage() {
+            return errorMessage;
+        }
+
+        public String getClientMessage() {
+            return getClientMessage(Locale.getDefault());
+        }
+
+        public String getClientMessage(Locale locale) {
+            return ClientMessages.get(errorMessage.clientMessage, locale);
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(ErrorMessage errorMessage, Throwable cause, Object... arguments) {
+            super(errorMessage, cause, arguments);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(ErrorMessage errorMessage, Throwable cause, Object... arguments) {
+            super(errorMessage, cause, arguments);
+        }
+    }
+
+    public static void main(String[] args) {
+        BookService service = new BookService(new FailingBookRepository(), new FailingBookRepository());
+
+        try {
+            service.bookById("42");
+        } catch (BookServiceException ex) {
+            System.err.println(ex.getClientMessage(Locale.ENGLISH));
+            System.err.println(ex.getClientMessage(new Locale("ru")));
+            System.err.println(ex.getMessage() + " <- " + ex.getCause().getMessage());
+        }
+
+        System.out.printf("Allocated per failed request: lazy %d bytes, eager %d bytes%n",
+                allocatedPerFailure(() -> {
+                    try {
+                        service.bookById(String.valueOf(42));
+                    } catch (BookServiceException ex) {
+                        return ex.getErrorMessage();
+                    }
+                    return null;
+                }),
+                allocatedPerFailure(() -> eagerBookById(String.valueOf(42)))
+        );
+    }
+
+    /**
+     * Те же три исключения, что и на пути отказа bookById, но с сообщениями, собранными сразу, как в ch4 App1.
+     */
+    private static Object eagerBookById(String id) {
+        Exception primary = new EagerException("Error when get book by " + id, "Error when get book, please try later", SHARED_CAUSE);
+        Exception secondary = new EagerException("Error when get book by " + id, "Error when get book, please try later", SHARED_CAUSE);
+        return new EagerException("Error when get book by " + id, "Error when get book, please try later", secondary);
+    }
+
+    private static class EagerException extends Exception {
+        private final String clientMessage;
+
+        EagerException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+    }
+
+    /**
+     * Средний объём аллокаций на вызов по данным ThreadMXBean из HotSpot.
+     */
+    private static long allocatedPerFailure(Failure failure) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = 100_000;
+        for (int i = 0; i < iterations; i++) {
+            failure.fail();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            failure.fail();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    interface Failure {
+        Object fail();
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException(ErrorMessage.GET_BOOKS_FROM_SERVICE, ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException(ErrorMessage.GET_BOOK_BY_ID_FROM_SERVICE, ex, id);
+            }
+        }
+    }
+
+    /**
+     * Причина создаётся заранее, чтобы в замерах была видна только цена наших исключений.
+     */
+    private static class FailingBookRepository implements BookRepository {
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            throw new BookRepositoryException(ErrorMessage.GET_BOOKS, SHARED_CAUSE);
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            throw new BookRepositoryException(ErrorMessage.GET_BOOK_BY_ID, SHARED_CAUSE, id);
+        }
+    }
+}
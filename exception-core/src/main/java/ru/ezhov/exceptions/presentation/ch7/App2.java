@@ -0,0 +1,285 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Потоковое чтение каталога.
+ * <p>
+ * Снимок из предыдущего примера хорош, пока каталог помещается в память.
+ * Если в каталоге миллионы книг, то readValue построит в памяти весь список целиком.
+ * <p>
+ * Jackson умеет читать JSON как поток токенов через JsonParser, значит книги можно отдавать по одной,
+ * не держа в памяти весь каталог, а поиск по идентификатору останавливать на первом совпадении.
+ * <p>
+ * Обратите внимание на интерфейс BookCursor. Стандартный Iterator не может объявить проверяемое исключение,
+ * и нам пришлось бы снова оборачивать ошибку разбора в непроверяемое (помните ch5?).
+ * Поэтому курсор объявляет BookRepositoryException явно, а ошибка разбора сообщает смещение токена,
+ * на котором она произошла.
+ * <p>
+ * Цена ранней остановки: bookById может найти книгу в каталоге, который испорчен где-то дальше.
+ * Ошибка будет обнаружена только тем, кто дочитает каталог до конца.
+ *
+ * @see BookCursor
+ * @see StreamingJacksonBookRepository
+ * @see App3
+ */
+public class App2 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * Ленивый курсор по книгам каталога.
+     * <p>
+     * Курсор обязательно закрывать, так как он держит открытый парсер.
+     */
+    interface BookCursor extends AutoCloseable {
+        boolean hasNext() throws BookRepositoryException;
+
+        String next() throws BookRepositoryException;
+
+        @Override
+        void close() throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            StreamingJacksonBookRepository broken = new StreamingJacksonBookRepository("[\"Book 1\", \"Book 2\"");
+            BookService service = new BookService(
+                    broken,
+                    new StreamingJacksonBookRepository("[\"Book 1\", \"Book 2\", \"Book 3\"]")
+            );
+
+            try (BookCursor cursor = broken.cursor()) {
+                while (cursor.hasNext()) {
+                    System.out.println(cursor.next());
+                }
+            } catch (BookRepositoryException ex) {
+                System.err.println(ex.getMessage());
+            }
+
+            System.out.println(service.all());
+            System.out.println(service.bookById("Book 3"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get all books");
+            ex.printStackTrace();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * JsonFactory потокобезопасен и дорог в создании, поэтому он общий.
+     * Каждый курсор создаёт свой лёгкий JsonParser.
+     * <p>
+     * all() оставлен для совместимости с контрактом и по-прежнему собирает список,
+     * для больших каталогов нужно использовать cursor().
+     */
+    private static class StreamingJacksonBookRepository implements BookRepository {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+        private final String rawBooks;
+
+        public StreamingJacksonBookRepository(String rawBooks) {
+            this.rawBooks = rawBooks;
+        }
+
+        public BookCursor cursor() throws BookRepositoryException {
+            try {
+                JsonParser parser = JSON_FACTORY.createParser(rawBooks);
+                JsonToken token = parser.nextToken();
+                if (token != JsonToken.START_ARRAY) {
+                    parser.close();
+                    throw new BookRepositoryException(
+                            "Error when get books: expected array at " + describe(parser.getTokenLocation()),
+                            "Error when get books, please try later",
+                            null
+                    );
+                }
+                return new JsonBookCursor(parser);
+            } catch (IOException e) {
+                throw parseError("Error when get books", "Error when get books, please try later", e);
+            }
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            List<String> books = new ArrayList<>();
+            try (BookCursor cursor = cursor()) {
+                while (cursor.hasNext()) {
+                    books.add(cursor.next());
+                }
+            }
+            return books;
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try (BookCursor cursor = cursor()) {
+                while (cursor.hasNext()) {
+                    String book = cursor.next();
+                    if (book.equals(id)) {
+                        return book;
+                    }
+                }
+            } catch (BookRepositoryException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+            throw new NoSuchElementException("No value present");
+        }
+
+        private static BookRepositoryException parseError(String message, String clientMessage, IOException e) {
+            if (e instanceof JsonProcessingException) {
+                JsonLocation location = ((JsonProcessingException) e).getLocation();
+                if (location != null) {
+                    message = message + " at " + describe(location);
+                }
+            }
+            return new BookRepositoryException(message, clientMessage, e);
+        }
+
+        private static String describe(JsonLocation location) {
+            long offset = location.getCharOffset() >= 0 ? location.getCharOffset() : location.getByteOffset();
+            return "offset " + offset + " (line " + location.getLineNr() + ", column " + location.getColumnNr() + ")";
+        }
+
+        /**
+         * Курсор заглядывает на один токен вперёд, чтобы hasNext мог честно ответить,
+         * есть ли следующая книга, и выбросить ошибку разбора именно в этот момент.
+         */
+        private static class JsonBookCursor implements BookCursor {
+            private final JsonParser parser;
+            private String nextBook;
+            private boolean finished;
+
+            JsonBookCursor(JsonParser parser) {
+                this.parser = parser;
+            }
+
+            @Override
+            public boolean hasNext() throws BookRepositoryException {
+                if (nextBook != null) {
+                    return true;
+                }
+                if (finished) {
+                    return false;
+                }
+                try {
+                    JsonToken token = parser.nextToken();
+                    if (token == JsonToken.END_ARRAY) {
+                        finished = true;
+                        return false;
+                    }
+                    if (token != JsonToken.VALUE_STRING) {
+                        finished = true;
+                        throw new BookRepositoryException(
+                                "Error when get books: unexpected token " + token + " at "
+                                        + describe(parser.getTokenLocation()),
+                                "Error when get books, please try later",
+                                null
+                        );
+                    }
+                    nextBook = parser.getText();
+                    return true;
+                } catch (IOException e) {
+                    finished = true;
+                    throw parseError("Error when get books", "Error when get books, please try later", e);
+                }
+            }
+
+            @Override
+            public String next() throws BookRepositoryException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String book = nextBook;
+                nextBook = null;
+                return book;
+            }
+
+            @Override
+            public void close() throws BookRepositoryException {
+                try {
+                    parser.close();
+                } catch (IOException e) {
+                    throw new BookRepositoryException("Error when close books cursor", "Error when get books, please try later", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Контекст вместо новой обёртки.
+ * <p>
+ * Каждый уровень заворачивает исключение нижнего уровня в новое: SQLException в BookRepositoryException,
+ * его - в BookServiceException (ch2 App7, ch3 App2, App3). Каждый шаг - это новый объект, ещё один снятый стек
+ * и ещё одно звено в цепочке причин, которую потом сериализует система логирования.
+ * <p>
+ * Часто уровню нечего сказать, кроме "это было в BookService, id = 42". Для этого хватит контекста:
+ * ClientException хранит список пар ключ-значение, и каждый уровень дописывает в него своё через with(key, value).
+ * Список только дополняется: новая пара - один маленький узел, который ссылается на предыдущие.
+ * <p>
+ * Иерархия не меняется: BookRepositoryException и BookServiceException по-прежнему наследники ClientException,
+ * и catch (BookServiceException) внутри сервиса не поймает ошибку хранилища. Сервис ловит BookRepositoryException
+ * и уходит во второе хранилище, а если не помогло - дописывает контекст и пробрасывает то же самое исключение,
+ * поэтому main ловит общего родителя ClientException.
+ * Заворачивается только чужое исключение - SQLException на границе хранилища.
+ * <p>
+ * with(key, value) в каждом наследнике возвращает его собственный тип, так что контекст дописывается
+ * прямо в throw: throw ex.with(...), и проверяемый тип исключения не теряется.
+ * <p>
+ * Контекст печатается в toString(), а значит и в printStackTrace.
+ *
+ * @see ContextKey
+ * @see ClientException#with(ContextKey, Object)
+ * @see App21
+ */
+public class App20 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * Типизированный ключ контекста. Ключи сравниваются по ссылке, поэтому объявляются константами.
+     */
+    static final class ContextKey<T> {
+        static final ContextKey<String> LAYER = new ContextKey<>("layer", String.class);
+        static final ContextKey<String> REPOSITORY = new ContextKey<>("repository", String.class);
+        static final ContextKey<String> BOOK_ID = new ContextKey<>("bookId", String.class);
+        static final ContextKey<Boolean> FALLBACK = new ContextKey<>("fallback", Boolean.class);
+
+        private final String name;
+        private final Class<T> type;
+
+        ContextKey(String name, Class<T> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Узел списка контекста. Узлы неизменяемы, новый узел ссылается на предыдущий.
+     */
+    private static final class ContextEntry {
+        private final ContextKey<?> key;
+        private final Object value;
+        private final ContextEntry previous;
+
+        ContextEntry(ContextKey<?> key, Object value, ContextEntry previous) {
+            this.key = key;
+            this.value = value;
+            this.previous = previous;
+        }
+    }
+
+    private static class ClientException extends Exception {
+        private static final AtomicReferenceFieldUpdater<ClientException, ContextEntry> CONTEXT =
+                AtomicReferenceFieldUpdater.newUpdater(ClientException.class, ContextEntry.class, "context");
+
+        private final String clientMessage;
+        private volatile ContextEntry context;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+
+        /**
+         * Дописывает пару в контекст. Возвращает это же исключение, чтобы пары можно было записывать цепочкой.
+         * Наследники переопределяют метод, чтобы возвращать свой тип.
+         * <p>
+         * Обычно исключение дополняет один поток, но CAS защищает и от одновременной записи.
+         */
+        public <T> ClientException with(ContextKey<T> key, T value) {
+            T checked = key.type.cast(value);
+            ContextEntry current;
+            do {
+                current = context;
+            } while (!CONTEXT.compareAndSet(this, current, new ContextEntry(key, checked, current)));
+            return this;
+        }
+
+        /**
+         * @return последнее записанное значение или null
+         */
+        public <T> T context(ContextKey<T> key) {
+            for (ContextEntry entry = context; entry != null; entry = entry.previous) {
+                if (entry.key == key) {
+                    return key.type.cast(entry.value);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Пары в порядке записи: сначала то, что дописал нижний уровень.
+         */
+        @Override
+        public String toString() {
+            ContextEntry entry = context;
+            if (entry == null) {
+                return super.toString();
+            }
+            StringBuilder result = new StringBuilder(super.toString()).append(" {");
+            appendInOrder(result, entry);
+            return result.append('}').toString();
+        }
+
+        private static void appendInOrder(StringBuilder result, ContextEntry entry) {
+            if (entry.previous != null) {
+                appendInOrder(result, entry.previous);
+                result.append(", ");
+            }
+            result.append(entry.key).append('=').append(entry.value);
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+
+        @Override
+        public <T> BookRepositoryException with(ContextKey<T> key, T value) {
+            super.with(key, value);
+            return this;
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+
+        @Override
+        public <T> BookServiceException with(ContextKey<T> key, T value) {
+            super.with(key, value);
+            return this;
+        }
+    }
+
+    public static void main(String[] args) {
+        BookService service = new BookService(new FailingBookRepository("db"), new FailingBookRepository("json"));
+
+        try {
+            service.bookById("42");
+        } catch (ClientException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+            System.err.println("Failed repository: " + ex.context(ContextKey.REPOSITORY)
+                    + ", book: " + ex.context(ContextKey.BOOK_ID));
+        }
+
+        WrappingBookService wrapping = new WrappingBookService(new FailingBookRepository("db"), new FailingBookRepository("json"));
+        System.out.printf("Allocated per failed request: context %d bytes, wrapping %d bytes%n",
+                allocatedPerFailure(() -> {
+                    try {
+                        return service.bookById("42");
+                    } catch (ClientException ex) {
+                        return ex;
+                    }
+                }),
+                allocatedPerFailure(() -> {
+                    try {
+                        return wrapping.bookById("42");
+                    } catch (BookServiceException ex) {
+                        return ex;
+                    }
+                })
+        );
+    }
+
+    /**
+     * Средний объём аллокаций на вызов по данным ThreadMXBean из HotSpot.
+     */
+    private static long allocatedPerFailure(Failure failure) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = 100_000;
+        for (int i = 0; i < iterations; i++) {
+            failure.fail();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            failure.fail();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    interface Failure {
+        Object fail();
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        /**
+         * @throws BookRepositoryException ошибка второго хранилища с контекстом сервиса
+         */
+        List<String> all() throws BookRepositoryException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw ex.with(ContextKey.LAYER, "BookService").with(ContextKey.FALLBACK, Boolean.TRUE);
+            }
+        }
+
+        /**
+         * @throws BookRepositoryException ошибка второго хранилища с контекстом сервиса
+         */
+        String bookById(String id) throws BookRepositoryException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw ex.with(ContextKey.LAYER, "BookService").with(ContextKey.FALLBACK, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Для сравнения: сервис из ch4 App1, который заворачивает ошибку второго хранилища в новое исключение.
+     */
+    private static class WrappingBookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        WrappingBookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Граница хранилища: здесь чужое SQLException заворачивается один раз.
+     */
+    private static class FailingBookRepository implements BookRepository {
+        private final String name;
+
+        FailingBookRepository(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get books",
+                    "Error when get books, please try later",
+                    new SQLException("Connection refused")
+            ).with(ContextKey.REPOSITORY, name);
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get book",
+                    "Error when get book, please try later",
+                    new SQLException("Connection refused")
+            ).with(ContextKey.REPOSITORY, name).with(ContextKey.BOOK_ID, id);
+        }
+    }
+}
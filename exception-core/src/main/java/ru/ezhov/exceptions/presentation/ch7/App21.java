@@ -0,0 +1,280 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Ошибка в ответе HTTP.
+ * <p>
+ * До сих пор пользователь видел только getClientMessage(). HTTP клиенту нужен разбираемый ответ:
+ * код ошибки, сообщение для пользователя, идентификатор запроса для поиска в логах,
+ * а внутренним клиентам - ещё и цепочка причин.
+ * <p>
+ * Во время аварии ответ с ошибкой отдаётся на каждый запрос, поэтому ErrorResponseWriter
+ * не строит ни дерево ObjectNode, ни Map для ObjectMapper:
+ * 1. JSON пишется в OutputStream ответа через JsonGenerator, токен за токеном
+ * 2. код ошибки и имя класса читаются из аннотации один раз на класс и хранятся в ClassValue
+ * уже закодированными в UTF-8 (SerializedString), как и имена полей
+ * 3. буферы генератора берутся из BufferRecycler общего JsonFactory и возвращаются туда при close()
+ * <p>
+ * Поток ответа генератор не закрывает: им владеет вызывающий код.
+ *
+ * @see ErrorResponseWriter
+ * @see ErrorCode
+ * @see App22
+ */
+public class App21 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * Код ошибки в ответе. Класс без аннотации получает код ближайшего предка с аннотацией,
+     * исключения без кода во всей иерархии отдаются как INTERNAL_ERROR.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.TYPE)
+    @interface ErrorCode {
+        String value();
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    @ErrorCode("BOOK_REPOSITORY_UNAVAILABLE")
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    @ErrorCode("BOOK_SERVICE_UNAVAILABLE")
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        BookService service = new BookService(new FailingBookRepository(), new FailingBookRepository());
+        ErrorResponseWriter writer = new ErrorResponseWriter(new JsonFactory());
+
+        try {
+            service.bookById("42");
+        } catch (BookServiceException ex) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writer.write(ex, "c0ffee-42", false, body);
+            System.out.println(body.toString(StandardCharsets.UTF_8));
+
+            body.reset();
+            writer.write(ex, "c0ffee-42", true, body);
+            System.out.println(body.toString(StandardCharsets.UTF_8));
+
+            OutputStream discard = OutputStream.nullOutputStream();
+            ObjectMapper mapper = new ObjectMapper().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            System.out.printf("Allocated per error body: streaming %d bytes, ObjectNode %d bytes%n",
+                    allocatedPerCall(() -> writer.write(ex, "c0ffee-42", true, discard)),
+                    allocatedPerCall(() -> mapper.writeValue(discard, tree(mapper, ex, "c0ffee-42")))
+            );
+        }
+    }
+
+    /**
+     * Для сравнения: тот же ответ, собранный деревом.
+     */
+    private static ObjectNode tree(ObjectMapper mapper, ClientException error, String correlationId) {
+        ObjectNode body = mapper.createObjectNode();
+        body.put("code", error.getClass().getAnnotation(ErrorCode.class).value());
+        body.put("message", error.getClientMessage());
+        body.put("correlationId", correlationId);
+        ArrayNode causes = body.putArray("causes");
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            causes.addObject().put("type", cause.getClass().getName()).put("message", cause.getMessage());
+        }
+        return body;
+    }
+
+    /**
+     * Средний объём аллокаций на вызов по данным ThreadMXBean из HotSpot.
+     */
+    private static long allocatedPerCall(Call call) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        int iterations = 100_000;
+        for (int i = 0; i < iterations; i++) {
+            call.call();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            call.call();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    interface Call {
+        void call() throws IOException;
+    }
+
+    /**
+     * Пишет тело ответа:
+     * {"code":"...","message":"...","correlationId":"...","causes":[{"type":"...","code":"...","message":"..."}]}
+     * <p>
+     * message - это getClientMessage() внешнего исключения, сообщения для разработчика попадают только в causes.
+     * causes пишется только для внутренних клиентов, глубина цепочки ограничена.
+     * <p>
+     * Потокобезопасен: общий только JsonFactory, генератор создаётся на каждый ответ.
+     */
+    static final class ErrorResponseWriter {
+        private static final int MAX_CAUSE_DEPTH = 8;
+        private static final SerializableString CODE = new SerializedString("code");
+        private static final SerializableString MESSAGE = new SerializedString("message");
+        private static final SerializableString CORRELATION_ID = new SerializedString("correlationId");
+        private static final SerializableString CAUSES = new SerializedString("causes");
+        private static final SerializableString TYPE = new SerializedString("type");
+
+        private static final ClassValue<Layout> LAYOUTS = new ClassValue<Layout>() {
+            @Override
+            protected Layout computeValue(Class<?> type) {
+                ErrorCode code = null;
+                for (Class<?> current = type; code == null && current != null; current = current.getSuperclass()) {
+                    code = current.getAnnotation(ErrorCode.class);
+                }
+                return new Layout(
+                        new SerializedString(code == null ? "INTERNAL_ERROR" : code.value()),
+                        new SerializedString(type.getName())
+                );
+            }
+        };
+
+        private final JsonFactory jsonFactory;
+
+        ErrorResponseWriter(JsonFactory jsonFactory) {
+            this.jsonFactory = jsonFactory.copy().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        void write(ClientException error, String correlationId, boolean internal, OutputStream out) throws IOException {
+            try (JsonGenerator json = jsonFactory.createGenerator(out)) {
+                json.writeStartObject();
+                json.writeFieldName(CODE);
+                json.writeString(LAYOUTS.get(error.getClass()).code);
+                json.writeFieldName(MESSAGE);
+                json.writeString(error.getClientMessage());
+                json.writeFieldName(CORRELATION_ID);
+                json.writeString(correlationId);
+                if (internal) {
+                    json.writeFieldName(CAUSES);
+                    json.writeStartArray();
+                    Throwable current = error;
+                    for (int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++) {
+                        Layout layout = LAYOUTS.get(current.getClass());
+                        json.writeStartObject();
+                        json.writeFieldName(TYPE);
+                        json.writeString(layout.type);
+                        json.writeFieldName(CODE);
+                        json.writeString(layout.code);
+                        json.writeFieldName(MESSAGE);
+                        json.writeString(current.getMessage());
+                        json.writeEndObject();
+                        Throwable cause = current.getCause();
+                        current = cause == current ? null : cause;
+                    }
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+            }
+        }
+
+        private static final class Layout {
+            private final SerializableString code;
+            private final SerializableString type;
+
+            Layout(SerializableString code, SerializableString type) {
+                this.code = code;
+                this.type = type;
+            }
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    private static class FailingBookRepository implements BookRepository {
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get books",
+                    "Error when get books, please try later",
+                    new SQLException("Connection refused")
+            );
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            throw new BookRepositoryException(
+                    "Error when get book by " + id,
+                    "Error when get book, please try later",
+                    new SQLException("Connection refused")
+            );
+        }
+    }
+}
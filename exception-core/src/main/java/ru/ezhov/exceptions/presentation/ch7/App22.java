@@ -0,0 +1,596 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Каталог сразу в ответ.
+ * <p>
+ * BookService.all() возвращает готовый List, а обработчик HTTP затем сериализует его в JSON.
+ * Для большого каталога в памяти одновременно лежат и список, и ответ, а первый байт ответа уходит
+ * только после того, как прочитана последняя строка.
+ * <p>
+ * Добавим all(BookSink): хранилище отдаёт книги по одной прямо в приёмник.
+ * DbBookRepository читает их из курсора ResultSet, JacksonBookRepository - из JsonParser,
+ * а JsonArrayBookSink сразу пишет их в OutputStream ответа через JsonGenerator.
+ * Генератор сбрасывает буфер в поток по мере заполнения, так что ответ начинает уходить до конца запроса,
+ * а в памяти никогда не бывает больше одного буфера.
+ * <p>
+ * Для БД это верно, только если драйвер действительно читает курсор порциями: по умолчанию PostgreSQL и MySQL
+ * забирают весь результат до первого next(). Поэтому DbBookRepository задаёт setFetchSize,
+ * а от соединений требуется то, без чего драйвер fetch size не учитывает (см. DbBookRepository).
+ * <p>
+ * У потоковой выдачи есть цена, которой не было у списка:
+ * 1. переключиться на второе хранилище можно, только пока в приёмник ничего не записано,
+ * иначе ответ склеится из двух источников. После первой книги ошибка хранилища сразу становится BookServiceException
+ * 2. ошибка приёмника (клиент закрыл соединение) - это IOException, а не BookRepositoryException:
+ * хранилище здесь ни при чём, и переключаться на второе незачем
+ * 3. статус ответа к моменту ошибки уже отправлен, поэтому JsonArrayBookSink не дописывает закрывающую скобку
+ * при close() - клиент получит обрезанный, то есть заведомо некорректный JSON, а не правдоподобную половину каталога
+ *
+ * @see BookSink
+ * @see BookService#all(BookSink)
+ * @see JsonArrayBookSink
+ * @see App23
+ */
+public class App22 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        /**
+         * @throws IOException только от приёмника
+         */
+        void all(BookSink sink) throws BookRepositoryException, IOException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    /**
+     * Приёмник книг.
+     */
+    interface BookSink {
+        void accept(String book) throws IOException;
+    }
+
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    public static void main(String[] args) throws IOException {
+        int books = 2_000_000;
+        JacksonBookRepository json = new JacksonBookRepository("[\"Effective Java\",\"Java Concurrency in Practice\"]");
+
+        BookService service = new BookService(new DbBookRepository(new InMemoryDatabase(books, -1)::connect), json);
+        // оба пути сначала прогреваются, затем замеряются по очереди: иначе первый замер платит за загрузку классов и JIT
+        int rounds = 5;
+        for (int round = 1; round <= rounds; round++) {
+            TimedOutputStream streamed = new TimedOutputStream();
+            TimedOutputStream buffered = new TimedOutputStream();
+            try {
+                if (round % 2 == 0) {
+                    writeAll(service, streamed.start());
+                    writeAllFromList(service, buffered.start());
+                } else {
+                    writeAllFromList(service, buffered.start());
+                    writeAll(service, streamed.start());
+                }
+            } catch (BookServiceException ex) {
+                System.err.println(ex.getClientMessage());
+            }
+            if (round > 2) {
+                System.out.printf("round %d%n", round - 2);
+                System.out.printf("  all(BookSink): first byte after %d ms, %d bytes after %d ms%n",
+                        streamed.firstByteMillis(), streamed.bytes(), streamed.elapsedMillis());
+                System.out.printf("  all():         first byte after %d ms, %d bytes after %d ms%n",
+                        buffered.firstByteMillis(), buffered.bytes(), buffered.elapsedMillis());
+            }
+        }
+
+        BookService unavailable = new BookService(new DbBookRepository(() -> {
+            throw new SQLException("Connection refused");
+        }), json);
+        ByteArrayOutputStream fallback = new ByteArrayOutputStream();
+        try {
+            writeAll(unavailable, fallback);
+        } catch (BookServiceException ex) {
+            System.err.println(ex.getClientMessage());
+        }
+        System.out.println("Primary failed before the first book: " + fallback.toString(StandardCharsets.UTF_8));
+
+        BookService broken = new BookService(new DbBookRepository(new InMemoryDatabase(books, 3)::connect), json);
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        try {
+            writeAll(broken, truncated);
+        } catch (BookServiceException ex) {
+            System.err.println(ex.getClientMessage());
+        }
+        System.out.println("Primary failed after the third book: " + truncated.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Для сравнения: сначала весь список, потом ответ.
+     */
+    private static void writeAllFromList(BookService service, OutputStream out) throws BookServiceException, IOException {
+        List<String> all = service.all();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartArray();
+            for (String book : all) {
+                generator.writeString(book);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Обработчик GET /books: всё, что делает сервис, сразу попадает в ответ.
+     */
+    private static void writeAll(BookService service, OutputStream out) throws BookServiceException, IOException {
+        try (JsonArrayBookSink sink = new JsonArrayBookSink(JSON_FACTORY, out)) {
+            service.all(sink);
+            sink.finish();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        /**
+         * Второе хранилище используется, только если первое не успело отдать ни одной книги.
+         */
+        void all(BookSink sink) throws BookServiceException, IOException {
+            CountingBookSink counting = new CountingBookSink(sink);
+            try {
+                try {
+                    primaryBookRepository.all(counting);
+                } catch (BookRepositoryException ex) {
+                    if (counting.count > 0) {
+                        throw ex;
+                    }
+                    secondaryBookRepository.all(counting);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException(
+                        "Error when get books after " + counting.count + " books",
+                        "Error when get books, please try later",
+                        ex
+                );
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    private static final class CountingBookSink implements BookSink {
+        private final BookSink delegate;
+        private long count;
+
+        CountingBookSink(BookSink delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void accept(String book) throws IOException {
+            delegate.accept(book);
+            count++;
+        }
+    }
+
+    /**
+     * Пишет книги JSON массивом в поток ответа.
+     * <p>
+     * Закрывающая скобка пишется только в finish(). close() освобождает буферы генератора,
+     * но незавершённый массив не дописывает и поток ответа не закрывает.
+     */
+    static final class JsonArrayBookSink implements BookSink, Closeable {
+        private final JsonGenerator json;
+
+        JsonArrayBookSink(JsonFactory jsonFactory, OutputStream out) throws IOException {
+            this.json = jsonFactory.createGenerator(out)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.json.writeStartArray();
+        }
+
+        @Override
+        public void accept(String book) throws IOException {
+            json.writeString(book);
+        }
+
+        void finish() throws IOException {
+            json.writeEndArray();
+            json.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            json.close();
+        }
+    }
+
+    /**
+     * JsonParser читает строку каталога по токенам, список не строится.
+     */
+    private static class JacksonBookRepository implements BookRepository {
+        private final String rawBooks;
+
+        public JacksonBookRepository(String rawBooks) {
+            this.rawBooks = rawBooks;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            List<String> books = new ArrayList<>();
+            try {
+                all(books::add);
+            } catch (IOException e) {
+                throw new IllegalStateException("List sink does not throw", e);
+            }
+            return books;
+        }
+
+        @Override
+        public void all(BookSink sink) throws BookRepositoryException, IOException {
+            JsonParser parser = open("Error when get books", "Error when get books, please try later");
+            try {
+                String book;
+                while ((book = nextBook(parser, "Error when get books", "Error when get books, please try later")) != null) {
+                    sink.accept(book);
+                }
+            } finally {
+                close(parser);
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            String message = "Error when get book by " + id;
+            JsonParser parser = open(message, "Error when get book, please try later");
+            try {
+                String book;
+                while ((book = nextBook(parser, message, "Error when get book, please try later")) != null) {
+                    if (book.equals(id)) {
+                        return book;
+                    }
+                }
+            } finally {
+                close(parser);
+            }
+            throw new NoSuchElementException("No value present");
+        }
+
+        /**
+         * IOException из all(BookSink) должен означать только ошибку приёмника, поэтому ошибка закрытия не выпускается.
+         */
+        private static void close(JsonParser parser) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // строка в памяти, закрывать нечего
+            }
+        }
+
+        private JsonParser open(String message, String clientMessage) throws BookRepositoryException {
+            try {
+                JsonParser parser = JSON_FACTORY.createParser(rawBooks);
+                if (parser.nextToken() != JsonToken.START_ARRAY) {
+                    parser.close();
+                    throw new BookRepositoryException(message, clientMessage,
+                            new IOException("Catalog is not an array at " + parser.getTokenLocation()));
+                }
+                return parser;
+            } catch (IOException e) {
+                throw new BookRepositoryException(message, clientMessage, e);
+            }
+        }
+
+        /**
+         * @return следующая книга или null в конце массива
+         */
+        private static String nextBook(JsonParser parser, String message, String clientMessage) throws BookRepositoryException {
+            try {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.END_ARRAY) {
+                    return null;
+                }
+                if (token != JsonToken.VALUE_STRING) {
+                    throw new BookRepositoryException(message, clientMessage,
+                            new IOException("Unexpected " + token + " at " + parser.getTokenLocation()));
+                }
+                return parser.getText();
+            } catch (IOException e) {
+                throw new BookRepositoryException(message, clientMessage, e);
+            }
+        }
+    }
+
+    /**
+     * all(BookSink) держит соединение и курсор, пока приёмник принимает книги:
+     * медленный клиент - это долгий запрос к БД. Об этом следующий пример.
+     * <p>
+     * Курсор читается порциями по FETCH_SIZE строк, если драйвер это поддерживает:
+     * 1. PostgreSQL - только внутри транзакции, то есть соединения должны приходить с autoCommit = false,
+     * и только для TYPE_FORWARD_ONLY
+     * 2. MySQL - с параметром соединения useCursorFetch=true, иначе fetch size игнорируется
+     * 3. Oracle читает порциями всегда, setFetchSize только меняет размер порции
+     * Без этого драйвер заберёт весь результат до первой книги, и память снова будет расти с каталогом.
+     */
+    private static class DbBookRepository implements BookRepository {
+        private static final int FETCH_SIZE = 500;
+
+        private final ConnectionFactory connections;
+
+        public DbBookRepository(ConnectionFactory connections) {
+            this.connections = connections;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try (Connection connection = connections.create();
+                 Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT NAME FROM BOOK")) {
+                List<String> books = new ArrayList<>();
+                while (resultSet.next()) {
+                    books.add(resultSet.getString(1));
+                }
+                return books;
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get books",
+                        "Error when get books, please try later",
+                        e
+                );
+            }
+        }
+
+        @Override
+        public void all(BookSink sink) throws BookRepositoryException, IOException {
+            try (Connection connection = connections.create();
+                 Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(FETCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery("SELECT NAME FROM BOOK")) {
+                    while (resultSet.next()) {
+                        sink.accept(resultSet.getString(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get books",
+                        "Error when get books, please try later",
+                        e
+                );
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try (Connection connection = connections.create();
+                 PreparedStatement ps = connection.prepareStatement("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                ps.setString(1, id);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    if (resultSet.next()) {
+                        return resultSet.getString(1);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+            throw new NoSuchElementException("No value present");
+        }
+    }
+
+    /**
+     * Поток ответа, который считает байты и запоминает время первой записи.
+     */
+    private static final class TimedOutputStream extends OutputStream {
+        private long start = System.nanoTime();
+        private long firstByteAt;
+        private long lastByteAt;
+        private long bytes;
+
+        @Override
+        public void write(int b) {
+            write(null, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            long now = System.nanoTime();
+            if (bytes == 0) {
+                firstByteAt = now;
+            }
+            lastByteAt = now;
+            bytes += len;
+        }
+
+        TimedOutputStream start() {
+            start = System.nanoTime();
+            return this;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+
+        long firstByteMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(firstByteAt - start);
+        }
+
+        long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lastByteAt - start);
+        }
+    }
+
+    /**
+     * JDBC заглушка в памяти: книги "Book 0", "Book 1", ... генерируются при чтении курсора,
+     * так что заглушка сама не держит каталог в памяти. failAt - номер строки, на которой рвётся соединение.
+     */
+    private static class InMemoryDatabase {
+        private final int books;
+        private final int failAt;
+
+        InMemoryDatabase(int books, int failAt) {
+            this.books = books;
+            this.failAt = failAt;
+        }
+
+        Connection connect() {
+            return proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "createStatement":
+                        return proxy(Statement.class, (s, m, a) -> {
+                            switch (m.getName()) {
+                                case "executeQuery":
+                                    return execute((String) a[0], null);
+                                case "setFetchSize":
+                                case "close":
+                                    return null;
+                                default:
+                                    return unsupported(m);
+                            }
+                        });
+                    case "prepareStatement":
+                        String sql = (String) args[0];
+                        String[] parameter = new String[1];
+                        return proxy(PreparedStatement.class, (s, m, a) -> {
+                            switch (m.getName()) {
+                                case "setString":
+                                    parameter[0] = (String) a[1];
+                                    return null;
+                                case "executeQuery":
+                                    return execute(sql, parameter[0]);
+                                case "close":
+                                    return null;
+                                default:
+                                    return unsupported(m);
+                            }
+                        });
+                    case "close":
+                        return null;
+                    default:
+                        return unsupported(method);
+                }
+            });
+        }
+
+        private ResultSet execute(String sql, String id) throws SQLException {
+            int first;
+            int end;
+            if (sql.equals("SELECT NAME FROM BOOK")) {
+                first = 0;
+                end = books;
+            } else if (sql.equals("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                int row = Integer.parseInt(id);
+                first = row;
+                end = row >= 0 && row < books ? row + 1 : row;
+            } else {
+                throw new SQLSyntaxErrorException("Unsupported query: " + sql);
+            }
+            int[] cursor = {first - 1};
+            return proxy(ResultSet.class, (r, m, a) -> {
+                switch (m.getName()) {
+                    case "next":
+                        if (++cursor[0] == failAt) {
+                            throw new SQLException("Connection reset");
+                        }
+                        return cursor[0] < end;
+                    case "getString":
+                        return "Book " + cursor[0];
+                    case "close":
+                        return null;
+                    default:
+                        return unsupported(m);
+                }
+            });
+        }
+
+        private static Object unsupported(Method method) throws SQLException {
+            throw new SQLFeatureNotSupportedException(method.getName());
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+    }
+}
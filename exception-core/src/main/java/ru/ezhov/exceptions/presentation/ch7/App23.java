@@ -0,0 +1,509 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Каталог по страницам.
+ * <p>
+ * SELECT NAME FROM BOOK читает всю таблицу одним запросом: драйвер тянет все строки в память,
+ * а БД держит курсор и блокировки, пока мы не дочитаем последнюю строку (в App22 - пока не допишем ответ).
+ * <p>
+ * DbBookRepository.page(afterKey, limit) читает одну страницу:
+ * 1. страница начинается после ключа последней книги предыдущей страницы - WHERE ID > ? ORDER BY ID LIMIT ?.
+ * В отличие от OFFSET, БД не пропускает строки всех предыдущих страниц, а сразу находит начало по индексу,
+ * и вставка новой книги не сдвигает страницы
+ * 2. setFetchSize совпадает с размером страницы: страница приходит за одну выборку драйвера
+ * 3. список страницы создаётся сразу нужного размера
+ * 4. запрашивается limit + 1 строка: лишняя строка говорит, что есть следующая страница, без отдельного пустого запроса
+ * <p>
+ * BookCursor идёт по каталогу страница за страницей, только вперёд. Соединение занято только на время чтения
+ * одной страницы, в памяти лежит одна страница.
+ * <p>
+ * Если чтение прервалось, BookRepositoryException несёт в контексте (как в App20) позицию курсора:
+ * ключ последней отданной книги и сколько книг уже отдано. С этого ключа чтение можно продолжить.
+ *
+ * @see DbBookRepository#page(String, int)
+ * @see DbBookRepository#cursor(String, int)
+ * @see BookCursor
+ */
+public class App23 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Курсор по каталогу, только вперёд. Закрывать не нужно: между страницами курсор не держит соединение.
+     */
+    interface BookCursor {
+        boolean hasNext() throws BookRepositoryException;
+
+        String next() throws BookRepositoryException;
+    }
+
+    static final class ContextKey<T> {
+        static final ContextKey<String> AFTER_KEY = new ContextKey<>("afterKey", String.class);
+        static final ContextKey<Integer> LIMIT = new ContextKey<>("limit", Integer.class);
+        static final ContextKey<Long> BOOKS_READ = new ContextKey<>("booksRead", Long.class);
+
+        private final String name;
+        private final Class<T> type;
+
+        ContextKey(String name, Class<T> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class ContextEntry {
+        private final ContextKey<?> key;
+        private final Object value;
+        private final ContextEntry previous;
+
+        ContextEntry(ContextKey<?> key, Object value, ContextEntry previous) {
+            this.key = key;
+            this.value = value;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Контекст из App20. Здесь исключение дополняет только поток курсора, поэтому обходимся без CAS.
+     */
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+        private ContextEntry context;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+
+        public <T> ClientException with(ContextKey<T> key, T value) {
+            context = new ContextEntry(key, key.type.cast(value), context);
+            return this;
+        }
+
+        public <T> T context(ContextKey<T> key) {
+            for (ContextEntry entry = context; entry != null; entry = entry.previous) {
+                if (entry.key == key) {
+                    return key.type.cast(entry.value);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            if (context == null) {
+                return super.toString();
+            }
+            StringBuilder result = new StringBuilder(super.toString()).append(" {");
+            appendInOrder(result, context);
+            return result.append('}').toString();
+        }
+
+        private static void appendInOrder(StringBuilder result, ContextEntry entry) {
+            if (entry.previous != null) {
+                appendInOrder(result, entry.previous);
+                result.append(", ");
+            }
+            result.append(entry.key).append('=').append(entry.value);
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws BookRepositoryException {
+        Map<String, String> books = new TreeMap<>();
+        for (int i = 1; i <= 10; i++) {
+            books.put(String.format("%04d", i), "Book " + i);
+        }
+
+        InMemoryDatabase database = new InMemoryDatabase(books, -1);
+        DbBookRepository repository = new DbBookRepository(database::connect);
+        Page page = repository.page(null, 4);
+        while (true) {
+            System.out.println(page.books() + (page.hasMore() ? " -> after " + page.lastKey() : ""));
+            if (!page.hasMore()) {
+                break;
+            }
+            page = repository.page(page.lastKey(), 4);
+        }
+        System.out.printf("%d queries, fetch size %d%n", database.queries(), database.lastFetchSize());
+
+        DbBookRepository broken = new DbBookRepository(new InMemoryDatabase(books, 6)::connect);
+        BookCursor cursor = broken.cursor(null, 4);
+        try {
+            while (cursor.hasNext()) {
+                System.out.println(cursor.next());
+            }
+        } catch (BookRepositoryException ex) {
+            System.err.println(ex);
+            System.err.println(ex.getClientMessage());
+            BookCursor resumed = repository.cursor(ex.context(ContextKey.AFTER_KEY), 4);
+            while (resumed.hasNext()) {
+                System.out.println("resumed: " + resumed.next());
+            }
+        }
+
+        BookService service = new BookService(broken, repository);
+        try {
+            System.out.println(service.all());
+        } catch (BookServiceException ex) {
+            System.err.println(ex.getClientMessage());
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Страница каталога.
+     */
+    static final class Page {
+        private final List<String> books;
+        private final String lastKey;
+        private final boolean hasMore;
+
+        Page(List<String> books, String lastKey, boolean hasMore) {
+            this.books = books;
+            this.lastKey = lastKey;
+            this.hasMore = hasMore;
+        }
+
+        List<String> books() {
+            return books;
+        }
+
+        /**
+         * @return ключ последней книги страницы или null для пустой страницы
+         */
+        String lastKey() {
+            return lastKey;
+        }
+
+        boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    private static class DbBookRepository implements BookRepository {
+        private static final String FIRST_PAGE = "SELECT ID, NAME FROM BOOK ORDER BY ID LIMIT ?";
+        private static final String NEXT_PAGE = "SELECT ID, NAME FROM BOOK WHERE ID > ? ORDER BY ID LIMIT ?";
+        private static final int ALL_PAGE_SIZE = 500;
+
+        private final ConnectionFactory connections;
+
+        public DbBookRepository(ConnectionFactory connections) {
+            this.connections = connections;
+        }
+
+        /**
+         * Каталог целиком, но по страницам: соединение не держится на всё время чтения.
+         */
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            List<String> books = new ArrayList<>();
+            BookCursor cursor = cursor(null, ALL_PAGE_SIZE);
+            while (cursor.hasNext()) {
+                books.add(cursor.next());
+            }
+            return books;
+        }
+
+        /**
+         * @param afterKey ключ последней книги предыдущей страницы, null для первой страницы
+         */
+        Page page(String afterKey, int limit) throws BookRepositoryException {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("limit must be positive: " + limit);
+            }
+            try (Connection connection = connections.create();
+                 PreparedStatement ps = connection.prepareStatement(afterKey == null ? FIRST_PAGE : NEXT_PAGE)) {
+                int parameter = 1;
+                if (afterKey != null) {
+                    ps.setString(parameter++, afterKey);
+                }
+                ps.setInt(parameter, limit + 1);
+                ps.setFetchSize(limit + 1);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    List<String> books = new ArrayList<>(limit);
+                    String lastKey = null;
+                    while (books.size() < limit && resultSet.next()) {
+                        lastKey = resultSet.getString(1);
+                        books.add(resultSet.getString(2));
+                    }
+                    boolean hasMore = books.size() == limit && resultSet.next();
+                    return new Page(books, lastKey, hasMore);
+                }
+            } catch (SQLException e) {
+                BookRepositoryException ex = new BookRepositoryException(
+                        "Error when get books",
+                        "Error when get books, please try later",
+                        e
+                );
+                ex.with(ContextKey.AFTER_KEY, afterKey).with(ContextKey.LIMIT, limit);
+                throw ex;
+            }
+        }
+
+        BookCursor cursor(String afterKey, int pageSize) {
+            return new PagingBookCursor(this, afterKey, pageSize);
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try (Connection connection = connections.create();
+                 PreparedStatement ps = connection.prepareStatement("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                ps.setString(1, id);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    if (resultSet.next()) {
+                        return resultSet.getString(1);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+            throw new NoSuchElementException("No value present");
+        }
+    }
+
+    /**
+     * Следующая страница читается, когда текущая отдана целиком.
+     * <p>
+     * Ошибка чтения страницы дополняется позицией курсора. afterKey в контексте - это ключ последней
+     * отданной книги: страница, которая не прочиталась, не отдала ни одной.
+     */
+    private static class PagingBookCursor implements BookCursor {
+        private final DbBookRepository repository;
+        private final int pageSize;
+        private String afterKey;
+        private List<String> books = Collections.emptyList();
+        private int index;
+        private boolean hasMore = true;
+        private long read;
+
+        PagingBookCursor(DbBookRepository repository, String afterKey, int pageSize) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+            }
+            this.repository = repository;
+            this.afterKey = afterKey;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() throws BookRepositoryException {
+            if (index < books.size()) {
+                return true;
+            }
+            if (!hasMore) {
+                return false;
+            }
+            Page page;
+            try {
+                page = repository.page(afterKey, pageSize);
+            } catch (BookRepositoryException ex) {
+                ex.with(ContextKey.BOOKS_READ, read);
+                throw ex;
+            }
+            books = page.books();
+            index = 0;
+            hasMore = page.hasMore();
+            if (page.lastKey() != null) {
+                afterKey = page.lastKey();
+            }
+            return !books.isEmpty();
+        }
+
+        @Override
+        public String next() throws BookRepositoryException {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more books");
+            }
+            read++;
+            return books.get(index++);
+        }
+    }
+
+    /**
+     * JDBC заглушка в памяти, понимает только запросы этого примера.
+     * failAt - номер строки от начала таблицы, на котором запрос падает.
+     */
+    private static class InMemoryDatabase {
+        private final NavigableMap<String, String> books;
+        private final int failAt;
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile int lastFetchSize;
+
+        InMemoryDatabase(Map<String, String> books, int failAt) {
+            this.books = Collections.unmodifiableNavigableMap(new TreeMap<>(books));
+            this.failAt = failAt;
+        }
+
+        Connection connect() {
+            return proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "prepareStatement":
+                        String sql = (String) args[0];
+                        Object[] parameters = new Object[3];
+                        return proxy(PreparedStatement.class, (s, m, a) -> {
+                            switch (m.getName()) {
+                                case "setString":
+                                case "setInt":
+                                    parameters[(Integer) a[0]] = a[1];
+                                    return null;
+                                case "setFetchSize":
+                                    lastFetchSize = (Integer) a[0];
+                                    return null;
+                                case "executeQuery":
+                                    queries.incrementAndGet();
+                                    return execute(sql, parameters);
+                                case "close":
+                                    return null;
+                                default:
+                                    return unsupported(m);
+                            }
+                        });
+                    case "close":
+                        return null;
+                    default:
+                        return unsupported(method);
+                }
+            });
+        }
+
+        int queries() {
+            return queries.get();
+        }
+
+        int lastFetchSize() {
+            return lastFetchSize;
+        }
+
+        private ResultSet execute(String sql, Object[] parameters) throws SQLException {
+            List<Map.Entry<String, String>> rows = new ArrayList<>();
+            if (sql.equals(DbBookRepository.FIRST_PAGE) || sql.equals(DbBookRepository.NEXT_PAGE)) {
+                boolean first = sql.equals(DbBookRepository.FIRST_PAGE);
+                int limit = (Integer) parameters[first ? 1 : 2];
+                NavigableMap<String, String> tail = first ? books : books.tailMap((String) parameters[1], false);
+                for (Map.Entry<String, String> book : tail.entrySet()) {
+                    if (rows.size() == limit) {
+                        break;
+                    }
+                    rows.add(book);
+                }
+            } else if (sql.equals("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                String name = books.get((String) parameters[1]);
+                if (name != null) {
+                    rows.add(Map.entry((String) parameters[1], name));
+                }
+            } else {
+                throw new SQLSyntaxErrorException("Unsupported query: " + sql);
+            }
+            boolean namesOnly = !sql.startsWith("SELECT ID");
+            int[] cursor = {-1};
+            return proxy(ResultSet.class, (r, m, a) -> {
+                switch (m.getName()) {
+                    case "next":
+                        if (++cursor[0] < rows.size() && books.headMap(rows.get(cursor[0]).getKey()).size() == failAt) {
+                            throw new SQLException("Connection reset");
+                        }
+                        return cursor[0] < rows.size();
+                    case "getString":
+                        Map.Entry<String, String> row = rows.get(cursor[0]);
+                        return namesOnly || (Integer) a[0] == 2 ? row.getValue() : row.getKey();
+                    case "close":
+                        return null;
+                    default:
+                        return unsupported(m);
+                }
+            });
+        }
+
+        private static Object unsupported(Method method) throws SQLException {
+            throw new SQLFeatureNotSupportedException(method.getName());
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Каталог в файле.
+ * <p>
+ * До сих пор каталог был строкой rawBooks прямо в коде. В жизни он лежит в файле,
+ * и файл этот может занимать несколько гигабайт.
+ * <p>
+ * Если прочитать файл в String или byte[], каждый процесс на машине получит свою копию каталога в куче.
+ * Если же отобразить файл в память через FileChannel.map, то страницы файла живут в page cache
+ * операционной системы и разделяются между всеми процессами, которые читают этот же файл.
+ * <p>
+ * Jackson читает отображённый буфер через байтовый парсер (UTF8StreamJsonParser), который проходит
+ * по файлу небольшими порциями своего переиспользуемого буфера, без копии всего каталога.
+ * <p>
+ * Ошибки ввода-вывода и разбора по-прежнему приходят как BookRepositoryException,
+ * только теперь в сообщении есть путь к файлу и смещение в байтах.
+ *
+ * @see MappedJacksonBookRepository
+ * @see MappedFileInputStream
+ * @see App4
+ */
+public class App3 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            Path catalog = Files.createTempFile("books", ".json");
+            catalog.toFile().deleteOnExit();
+            Files.write(catalog, "[\"Book 1\", \"Book 2\", \"Book 3\"]".getBytes(StandardCharsets.UTF_8));
+
+            BookService service = new BookService(
+                    new MappedJacksonBookRepository(Paths.get("not-existing-books.json")),
+                    new MappedJacksonBookRepository(catalog)
+            );
+            System.out.println(service.all());
+            System.out.println(service.bookById("Book 2"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get all books");
+            ex.printStackTrace();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    /**
+     * Файл отображается в память один раз, при первом обращении.
+     * Один MappedByteBuffer не может быть больше 2 ГБ, поэтому большой файл отображается несколькими регионами.
+     * <p>
+     * Буферы общие для всех потоков, а позиция у каждого чтения своя (через ByteBuffer.duplicate),
+     * поэтому читать каталог можно параллельно.
+     * Размер файла фиксируется в момент отображения.
+     */
+    private static class MappedJacksonBookRepository implements BookRepository {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+        private static final long REGION_SIZE = 1L << 30;
+
+        private final Path file;
+        private volatile List<MappedByteBuffer> regions;
+
+        public MappedJacksonBookRepository(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            List<String> books = new ArrayList<>();
+            try (JsonParser parser = openArray("Error when get books", "Error when get books, please try later")) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    books.add(bookText(parser, token));
+                }
+                return books;
+            } catch (IOException e) {
+                throw error("Error when get books", "Error when get books, please try later", e);
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try (JsonParser parser = openArray("Error when get book by " + id, "Error when get book, please try later")) {
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    String book = bookText(parser, token);
+                    if (book.equals(id)) {
+                        return book;
+                    }
+                }
+            } catch (IOException e) {
+                throw error("Error when get book by " + id, "Error when get book, please try later", e);
+            }
+            throw new NoSuchElementException("No value present");
+        }
+
+        private JsonParser openArray(String message, String clientMessage) throws BookRepositoryException, IOException {
+            JsonParser parser = JSON_FACTORY.createParser(new MappedFileInputStream(regions(message, clientMessage)));
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                parser.close();
+                throw new BookRepositoryException(
+                        message + ": expected array in " + file + " at byte offset "
+                                + parser.getTokenLocation().getByteOffset(),
+                        clientMessage,
+                        null
+                );
+            }
+            return parser;
+        }
+
+        private static String bookText(JsonParser parser, JsonToken token) throws IOException {
+            if (token != JsonToken.VALUE_STRING) {
+                throw new JsonParseException(parser, "Unexpected token " + token);
+            }
+            return parser.getText();
+        }
+
+        private List<MappedByteBuffer> regions(String message, String clientMessage) throws BookRepositoryException {
+            List<MappedByteBuffer> current = regions;
+            if (current == null) {
+                synchronized (this) {
+                    current = regions;
+                    if (current == null) {
+                        current = map(message, clientMessage);
+                        regions = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        private List<MappedByteBuffer> map(String message, String clientMessage) throws BookRepositoryException {
+            long position = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                List<MappedByteBuffer> mapped = new ArrayList<>((int) (size / REGION_SIZE) + 1);
+                while (position < size) {
+                    long length = Math.min(REGION_SIZE, size - position);
+                    mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                    position += length;
+                }
+                return mapped;
+            } catch (IOException e) {
+                throw new BookRepositoryException(
+                        message + ": cannot map " + file + " at byte offset " + position,
+                        clientMessage,
+                        e
+                );
+            }
+        }
+
+        private BookRepositoryException error(String message, String clientMessage, IOException e) {
+            if (e instanceof JsonProcessingException) {
+                JsonLocation location = ((JsonProcessingException) e).getLocation();
+                if (location != null) {
+                    return new BookRepositoryException(
+                            message + ": malformed " + file + " at byte offset " + location.getByteOffset(),
+                            clientMessage,
+                            e
+                    );
+                }
+            }
+            return new BookRepositoryException(message + ": cannot read " + file, clientMessage, e);
+        }
+    }
+
+    /**
+     * Поток поверх отображённых регионов файла.
+     * <p>
+     * Байты копируются только в буфер парсера, сам файл в кучу не попадает.
+     */
+    private static class MappedFileInputStream extends InputStream {
+        private final List<MappedByteBuffer> regions;
+        private int regionIndex;
+        private ByteBuffer current;
+
+        MappedFileInputStream(List<MappedByteBuffer> regions) {
+            this.regions = regions;
+            this.current = regions.isEmpty() ? null : regions.get(0).duplicate();
+        }
+
+        @Override
+        public int read() {
+            if (!advance()) {
+                return -1;
+            }
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!advance()) {
+                return -1;
+            }
+            int count = Math.min(len, current.remaining());
+            current.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.remaining();
+        }
+
+        private boolean advance() {
+            while (current != null && !current.hasRemaining()) {
+                regionIndex++;
+                current = regionIndex < regions.size() ? regions.get(regionIndex).duplicate() : null;
+            }
+            return current != null;
+        }
+    }
+}
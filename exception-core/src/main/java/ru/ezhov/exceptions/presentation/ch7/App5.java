@@ -0,0 +1,725 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш подготовленных запросов.
+ * <p>
+ * Соединения мы теперь переиспользуем, но bookById на каждый вызов заново готовит
+ * "SELECT NAME FROM BOOK WHERE ID = ?", а all() каждый раз создаёт новый Statement.
+ * Для БД это лишний разбор и построение плана запроса на каждый вызов.
+ * <p>
+ * Раз соединение живёт долго, вместе с ним может жить и набор подготовленных запросов.
+ * У каждого соединения пула есть свой ограниченный LRU кэш PreparedStatement по тексту запроса.
+ * close() у выданного из кэша запроса не закрывает его, а только очищает параметры и возвращает в кэш.
+ * <p>
+ * Чтобы подобрать размер кэша под реальный набор запросов, пул считает попадания, промахи и вытеснения.
+ *
+ * @see StatementCache
+ * @see ConnectionPool#statementCacheStats()
+ * @see App6
+ */
+public class App5 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    /**
+     * Все соединения пула заняты и ни одно не освободилось за отведённое время.
+     */
+    private static class PoolExhaustedException extends BookRepositoryException {
+        public PoolExhaustedException(String message, String clientMessage) {
+            super(message, clientMessage, null);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+        InMemoryDatabase database = new InMemoryDatabase(books);
+
+        try (ConnectionPool pool = new ConnectionPool(
+                database::connect,
+                2,
+                Duration.ofMillis(100),
+                Duration.ofMinutes(1),
+                Duration.ofSeconds(10),
+                16
+        )) {
+            BookService service = new BookService(
+                    new DbBookRepository(pool),
+                    new JacksonBookRepository("[\"Book 1\", \"Book 2\"]")
+            );
+            for (int i = 0; i < 100; i++) {
+                service.bookById("2");
+            }
+            System.out.println(service.all());
+            System.out.println(service.bookById("1"));
+            System.out.println("Prepared by database: " + database.preparedStatements());
+            System.out.println(pool.statementCacheStats());
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get all books");
+            ex.printStackTrace();
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+    }
+
+    private static class JacksonBookRepository implements BookRepository {
+        private static final ObjectReader BOOKS_READER = new ObjectMapper()
+                .readerFor(new TypeReference<List<String>>() {
+                });
+
+        private final String rawBooks;
+
+        public JacksonBookRepository(String rawBooks) {
+            this.rawBooks = rawBooks;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try {
+                return BOOKS_READER.readValue(rawBooks);
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException("Error when get books", "Error when get books, please try later", e);
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try {
+                return BOOKS_READER.<List<String>>readValue(rawBooks)
+                        .stream().filter(b -> b.equals(id)).findFirst().get();
+            } catch (JsonProcessingException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+        }
+    }
+
+    /**
+     * Оба запроса готовятся через prepareStatement, поэтому оба попадают в кэш соединения.
+     */
+    private static class DbBookRepository implements BookRepository {
+        private final ConnectionPool pool;
+
+        public DbBookRepository(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            try (Connection connection = pool.borrow();
+                 PreparedStatement ps = connection.prepareStatement("SELECT NAME FROM BOOK");
+                 ResultSet resultSet = ps.executeQuery()) {
+                List<String> books = new ArrayList<>();
+                while (resultSet.next()) {
+                    books.add(resultSet.getString(1));
+                }
+                return books;
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get books",
+                        "Error when get books, please try later",
+                        e
+                );
+            }
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            try (Connection connection = pool.borrow();
+                 PreparedStatement ps = connection.prepareStatement("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                ps.setString(1, id);
+                try (ResultSet resultSet = ps.executeQuery()) {
+                    if (resultSet.next()) {
+                        return resultSet.getString(1);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + id,
+                        "Error when get book, please try later",
+                        e
+                );
+            }
+            throw new NoSuchElementException("No value present");
+        }
+    }
+
+    /**
+     * Ограниченный пул соединений.
+     * <p>
+     * Semaphore ограничивает количество выданных соединений, без конкуренции захват разрешения - это один CAS.
+     * Свободные соединения лежат в ConcurrentLinkedDeque и выдаются в порядке LIFO,
+     * чтобы "горячие" соединения использовались чаще, а лишние простаивали и закрывались.
+     * <p>
+     * Выдаётся не само соединение, а обёртка, у которой close() возвращает соединение в пул.
+     * Повторный close() у обёртки ничего не делает, а работа с закрытой обёрткой приводит к SQLException.
+     * <p>
+     * Кэш подготовленных запросов живёт вместе с физическим соединением и закрывается вместе с ним.
+     */
+    private static class ConnectionPool implements AutoCloseable {
+        private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+        private final ConnectionFactory factory;
+        private final int maxSize;
+        private final long borrowTimeoutNanos;
+        private final long idleTimeoutNanos;
+        private final long leakThresholdNanos;
+
+        private final Semaphore permits;
+        private final AtomicInteger totalConnections = new AtomicInteger();
+        private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+        private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+        private final ScheduledExecutorService housekeeper;
+        private volatile boolean closed;
+
+        private final int statementCacheSize;
+        private final LongAdder statementCacheHits = new LongAdder();
+        private final LongAdder statementCacheMisses = new LongAdder();
+        private final LongAdder statementCacheEvictions = new LongAdder();
+
+        /**
+         * @param leakThreshold через сколько невозвращённое соединение считается утёкшим,
+         *                      Duration.ZERO отключает поиск утечек и запись стека при выдаче
+         * @param statementCacheSize сколько подготовленных запросов хранить на одно соединение,
+         *                           0 отключает кэш
+         */
+        public ConnectionPool(
+                ConnectionFactory factory,
+                int maxSize,
+                Duration borrowTimeout,
+                Duration idleTimeout,
+                Duration leakThreshold,
+                int statementCacheSize
+        ) {
+            this.factory = factory;
+            this.maxSize = maxSize;
+            this.borrowTimeoutNanos = borrowTimeout.toNanos();
+            this.idleTimeoutNanos = idleTimeout.toNanos();
+            this.leakThresholdNanos = leakThreshold.toNanos();
+            this.permits = new Semaphore(maxSize);
+            this.statementCacheSize = statementCacheSize;
+
+            long periodMillis = Math.max(10, Math.min(idleTimeout.toMillis(),
+                    leakThreshold.isZero() ? Long.MAX_VALUE : leakThreshold.toMillis()) / 2);
+            this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "connection-pool-housekeeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.housekeeper.scheduleWithFixedDelay(this::housekeeping, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+
+        public Connection borrow() throws BookRepositoryException {
+            if (closed) {
+                throw new BookRepositoryException("Connection pool is closed", "Service is unavailable, please try later", null);
+            }
+            try {
+                if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                    throw new PoolExhaustedException(
+                            "All " + maxSize + " connections are in use, waited " + borrowTimeoutNanos / 1_000_000 + " ms",
+                            "Service is overloaded, please try later"
+                    );
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookRepositoryException("Interrupted when wait for connection", "Service is unavailable, please try later", e);
+            }
+
+            try {
+                PooledConnection pooled;
+                while ((pooled = idle.pollFirst()) != null) {
+                    if (isValid(pooled)) {
+                        return lend(pooled);
+                    }
+                    discard(pooled);
+                }
+                Connection physical = factory.create();
+                totalConnections.incrementAndGet();
+                return lend(new PooledConnection(physical, new StatementCache(this, statementCacheSize)));
+            } catch (SQLException e) {
+                permits.release();
+                throw new BookRepositoryException("Error when open connection", "Service is unavailable, please try later", e);
+            } catch (RuntimeException | Error e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        public StatementCacheStats statementCacheStats() {
+            return new StatementCacheStats(
+                    statementCacheHits.sum(),
+                    statementCacheMisses.sum(),
+                    statementCacheEvictions.sum()
+            );
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            housekeeper.shutdownNow();
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                discard(pooled);
+            }
+        }
+
+        private Connection lend(PooledConnection pooled) {
+            pooled.borrowedAt = System.nanoTime();
+            pooled.leakReported = false;
+            if (leakThresholdNanos > 0) {
+                pooled.borrowSite = new Throwable("Connection borrowed by thread " + Thread.currentThread().getName());
+                borrowed.add(pooled);
+            }
+            return pooled.lend(this);
+        }
+
+        private void release(PooledConnection pooled) {
+            borrowed.remove(pooled);
+            pooled.borrowSite = null;
+            pooled.lastReturnedAt = System.nanoTime();
+            if (closed || totalConnections.get() > maxSize) {
+                discard(pooled);
+            } else {
+                idle.offerFirst(pooled);
+            }
+            permits.release();
+        }
+
+        private boolean isValid(PooledConnection pooled) {
+            try {
+                return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void discard(PooledConnection pooled) {
+            totalConnections.decrementAndGet();
+            pooled.statementCache.closeAll();
+            try {
+                pooled.physical.close();
+            } catch (SQLException e) {
+                // соединение и так выбрасываем
+            }
+        }
+
+        private void housekeeping() {
+            long now = System.nanoTime();
+            for (PooledConnection pooled : idle) {
+                if (now - pooled.lastReturnedAt > idleTimeoutNanos && idle.removeLastOccurrence(pooled)) {
+                    discard(pooled);
+                }
+            }
+            for (PooledConnection pooled : borrowed) {
+                Throwable borrowSite = pooled.borrowSite;
+                if (!pooled.leakReported && borrowSite != null && now - pooled.borrowedAt > leakThresholdNanos) {
+                    pooled.leakReported = true;
+                    System.err.println("Possible connection leak: connection is not returned for "
+                            + TimeUnit.NANOSECONDS.toMillis(now - pooled.borrowedAt) + " ms");
+                    borrowSite.printStackTrace();
+                }
+            }
+        }
+    }
+
+    interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private static class PooledConnection {
+        private final Connection physical;
+        private final StatementCache statementCache;
+        private volatile long borrowedAt;
+        private volatile long lastReturnedAt;
+        private volatile Throwable borrowSite;
+        private volatile boolean leakReported;
+
+        PooledConnection(Connection physical, StatementCache statementCache) {
+            this.physical = physical;
+            this.statementCache = statementCache;
+        }
+
+        Connection lend(ConnectionPool pool) {
+            AtomicBoolean returned = new AtomicBoolean();
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (returned.compareAndSet(false, true)) {
+                            pool.release(this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned.get() || physical.isClosed();
+                    case "prepareStatement":
+                        if (returned.get()) {
+                            throw new SQLException("Connection is already returned to the pool");
+                        }
+                        if (args.length == 1) {
+                            return statementCache.prepare(physical, (String) args[0]);
+                        }
+                        return method.invoke(physical, args);
+                    case "toString":
+                        return "Pooled[" + physical + "]";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (returned.get()) {
+                            throw new SQLException("Connection is already returned to the pool");
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            };
+            return (Connection) Proxy.newProxyInstance(
+                    Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+        }
+    }
+
+    /**
+     * LRU кэш подготовленных запросов одного соединения.
+     * <p>
+     * Соединение в каждый момент времени выдано только одному потоку, поэтому кэш не синхронизирован.
+     * Если запрос из кэша ещё не закрыт (например, тот же запрос выполняется вложенно),
+     * выдаётся обычный некэшируемый PreparedStatement.
+     */
+    private static class StatementCache {
+        private final ConnectionPool pool;
+        private final Map<String, CachedStatement> statements;
+
+        StatementCache(ConnectionPool pool, int maxSize) {
+            this.pool = pool;
+            this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                    if (size() > maxSize) {
+                        pool.statementCacheEvictions.increment();
+                        eldest.getValue().evict();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        PreparedStatement prepare(Connection physical, String sql) throws SQLException {
+            if (pool.statementCacheSize == 0) {
+                return physical.prepareStatement(sql);
+            }
+            CachedStatement cached = statements.get(sql);
+            if (cached != null) {
+                if (cached.inUse) {
+                    return physical.prepareStatement(sql);
+                }
+                pool.statementCacheHits.increment();
+                return cached.lend();
+            }
+            pool.statementCacheMisses.increment();
+            cached = new CachedStatement(physical.prepareStatement(sql));
+            statements.put(sql, cached);
+            return cached.lend();
+        }
+
+        void closeAll() {
+            statements.values().forEach(CachedStatement::closePhysical);
+            statements.clear();
+        }
+    }
+
+    /**
+     * Подготовленный запрос из кэша, close() выданной обёртки возвращает его в кэш.
+     * <p>
+     * Запрос, вытесненный из кэша, пока он выдан, закрывается при close() обёртки:
+     * вызывающий код может ещё читать его ResultSet.
+     */
+    private static class CachedStatement {
+        private final PreparedStatement physical;
+        private boolean inUse;
+        private boolean evicted;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        PreparedStatement lend() {
+            inUse = true;
+            AtomicBoolean returned = new AtomicBoolean();
+            InvocationHandler handler = (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        if (returned.compareAndSet(false, true)) {
+                            inUse = false;
+                            if (evicted) {
+                                closePhysical();
+                            } else {
+                                physical.clearParameters();
+                            }
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned.get() || physical.isClosed();
+                    case "toString":
+                        return "Cached[" + physical + "]";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        if (returned.get()) {
+                            throw new SQLException("Statement is already returned to the cache");
+                        }
+                        try {
+                            return method.invoke(physical, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            };
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, handler);
+        }
+
+        void evict() {
+            evicted = true;
+            if (!inUse) {
+                closePhysical();
+            }
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                // запрос и так выбрасываем
+            }
+        }
+    }
+
+    private static class StatementCacheStats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        StatementCacheStats(long hits, long misses, long evictions) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        double hitRate() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "StatementCacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", hitRate=" + String.format("%.2f", hitRate()) + "}";
+        }
+    }
+
+    /**
+     * JDBC заглушка в памяти, понимает только запросы этого примера.
+     */
+    private static class InMemoryDatabase {
+        private final Map<String, String> books;
+        private final AtomicInteger openedConnections = new AtomicInteger();
+        private final AtomicInteger preparedStatements = new AtomicInteger();
+
+        InMemoryDatabase(Map<String, String> books) {
+            this.books = Collections.unmodifiableMap(new LinkedHashMap<>(books));
+        }
+
+        Connection connect() {
+            openedConnections.incrementAndGet();
+            AtomicBoolean closed = new AtomicBoolean();
+            return proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "createStatement":
+                        return proxy(Statement.class, (s, m, a) -> {
+                            if (m.getName().equals("executeQuery")) {
+                                return execute((String) a[0], null);
+                            }
+                            return m.getName().equals("close") ? null : unsupported(m);
+                        });
+                    case "prepareStatement":
+                        preparedStatements.incrementAndGet();
+                        String sql = (String) args[0];
+                        Map<Integer, String> parameters = new ConcurrentHashMap<>();
+                        return proxy(PreparedStatement.class, (s, m, a) -> {
+                            switch (m.getName()) {
+                                case "setString":
+                                    parameters.put((Integer) a[0], (String) a[1]);
+                                    return null;
+                                case "clearParameters":
+                                    parameters.clear();
+                                    return null;
+                                case "executeQuery":
+                                    return execute(sql, parameters.get(1));
+                                case "close":
+                                    return null;
+                                default:
+                                    return unsupported(m);
+                            }
+                        });
+                    case "isValid":
+                        return !closed.get();
+                    case "isClosed":
+                        return closed.get();
+                    case "close":
+                        closed.set(true);
+                        return null;
+                    default:
+                        return unsupported(method);
+                }
+            });
+        }
+
+        int openedConnections() {
+            return openedConnections.get();
+        }
+
+        int preparedStatements() {
+            return preparedStatements.get();
+        }
+
+        private ResultSet execute(String sql, String id) throws SQLException {
+            List<String> rows;
+            if (sql.equals("SELECT NAME FROM BOOK")) {
+                rows = new ArrayList<>(books.values());
+            } else if (sql.equals("SELECT NAME FROM BOOK WHERE ID = ?")) {
+                String name = books.get(id);
+                rows = name == null ? Collections.emptyList() : Collections.singletonList(name);
+            } else {
+                throw new SQLSyntaxErrorException("Unsupported query: " + sql);
+            }
+            int[] cursor = {-1};
+            return proxy(ResultSet.class, (r, m, a) -> {
+                switch (m.getName()) {
+                    case "next":
+                        return ++cursor[0] < rows.size();
+                    case "getString":
+                        return rows.get(cursor[0]);
+                    case "close":
+                        return null;
+                    default:
+                        return unsupported(m);
+                }
+            });
+        }
+
+        private static Object unsupported(Method method) throws SQLException {
+            throw new SQLFeatureNotSupportedException(method.getName());
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Автоматическая группировка запросов.
+ * <p>
+ * Метод booksByIds у нас есть, но обработчики запросов вызывают BookService.bookById(id) по одному
+ * и из множества потоков одновременно. Переписывать все места вызова ради пачек никто не будет.
+ * <p>
+ * Сделаем это за них: BatchingBookRepository - декоратор хранилища, который собирает одиночные запросы,
+ * пришедшие за короткое окно (например, 1 мс или 64 идентификатора), и отправляет их одним вызовом booksByIds.
+ * <p>
+ * Контракт bookById для вызывающего кода не меняется: каждый поток получает свою книгу
+ * или своё собственное BookRepositoryException, причиной которого будет общая ошибка пачки.
+ * <p>
+ * Цена: в худшем случае запрос ждёт окно целиком, поэтому окно должно быть заметно меньше времени
+ * одного обращения к хранилищу. Зависшая пачка не держит вызывающих вечно: после timeout они получают
+ * BookRepositoryException и уходят во второе хранилище.
+ *
+ * @see BatchingBookRepository
+ * @see App8
+ */
+public class App7 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+
+        /**
+         * Ошибки отдельных идентификаторов возвращаются в результате, а не выбрасываются.
+         *
+         * @return результат по каждому уникальному идентификатору в порядке запроса
+         */
+        Map<String, BookResult> booksByIds(Collection<String> ids);
+    }
+
+    /**
+     * Результат получения одной книги: книга найдена, книги нет или произошла ошибка.
+     */
+    private static final class BookResult {
+        private static final BookResult NOT_FOUND = new BookResult(null, null);
+
+        private final String book;
+        private final ClientException error;
+
+        private BookResult(String book, ClientException error) {
+            this.book = book;
+            this.error = error;
+        }
+
+        static BookResult found(String book) {
+            return new BookResult(book, null);
+        }
+
+        static BookResult notFound() {
+            return NOT_FOUND;
+        }
+
+        static BookResult failed(ClientException error) {
+            return new BookResult(null, error);
+        }
+
+        boolean isFound() {
+            return book != null;
+        }
+
+        boolean isFailed() {
+            return error != null;
+        }
+
+        String book() {
+            return book;
+        }
+
+        ClientException error() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            if (isFound()) {
+                return book;
+            }
+            return isFailed() ? "error: " + error.getClientMessage() : "not found";
+        }
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            books.put(String.valueOf(i), "Book " + i);
+        }
+        InMemoryBookRepository database = new InMemoryBookRepository(books, Duration.ofMillis(2));
+
+        try (BatchingBookRepository batching = new BatchingBookRepository(database, 64, Duration.ofMillis(1), Duration.ofSeconds(1))) {
+            BookService service = new BookService(batching, new InMemoryBookRepository(books, Duration.ZERO));
+
+            int threads = 64;
+            int lookupsPerThread = 50;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch done = new CountDownLatch(threads);
+            AtomicInteger errors = new AtomicInteger();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                executor.execute(() -> {
+                    try {
+                        for (int i = 0; i < lookupsPerThread; i++) {
+                            try {
+                                service.bookById(String.valueOf((seed * 31 + i) % 100));
+                            } catch (BookServiceException ex) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            executor.shutdown();
+
+            System.out.println("Lookups: " + threads * lookupsPerThread + ", errors: " + errors.get());
+            System.out.println("Round trips to database: " + database.calls());
+            System.out.println("Average batch size: " + batching.averageBatchSize());
+        }
+    }
+
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+
+        public BookService(BookRepository primaryBookRepository, BookRepository secondaryBookRepository) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+        }
+
+        List<String> all() throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.all();
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.all();
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get books", "Error when get books, please try later", ex);
+            }
+        }
+
+        String bookById(String id) throws BookServiceException {
+            try {
+                try {
+                    return primaryBookRepository.bookById(id);
+                } catch (BookRepositoryException ex) {
+                    return secondaryBookRepository.bookById(id);
+                }
+            } catch (BookRepositoryException ex) {
+                throw new BookServiceException("Error when get book by " + id, "Error when get book, please try later", ex);
+            }
+        }
+
+        Map<String, BookResult> booksByIds(Collection<String> ids) {
+            Map<String, BookResult> results = primaryBookRepository.booksByIds(ids);
+            List<String> failed = new ArrayList<>();
+            results.forEach((id, result) -> {
+                if (result.isFailed()) {
+                    failed.add(id);
+                }
+            });
+            if (failed.isEmpty()) {
+                return results;
+            }
+
+            Map<ClientException, BookServiceException> wrapped = new IdentityHashMap<>();
+            secondaryBookRepository.booksByIds(failed).forEach((id, result) -> {
+                if (result.isFailed()) {
+                    BookServiceException error = wrapped.computeIfAbsent(result.error(), cause ->
+                            new BookServiceException("Error when get books by ids", "Error when get book, please try later", cause));
+                    results.put(id, BookResult.failed(error));
+                } else {
+                    results.put(id, result);
+                }
+            });
+            return results;
+        }
+    }
+
+    /**
+     * Декоратор, который группирует одновременные вызовы bookById в один вызов booksByIds.
+     * <p>
+     * Пачка отправляется, когда в ней набралось maxBatchSize идентификаторов (в потоке, который её заполнил)
+     * или когда истекло окно с момента первого запроса в пачке (в пуле отправки).
+     * Поток диспетчера только отсчитывает окна: если бы он сам ходил в хранилище, один медленный вызов
+     * задержал бы отправку всех остальных пачек.
+     * Одинаковые идентификаторы внутри пачки уходят в хранилище один раз.
+     * <p>
+     * all() и booksByIds() передаются хранилищу как есть.
+     */
+    private static class BatchingBookRepository implements BookRepository, AutoCloseable {
+        private final BookRepository delegate;
+        private final int maxBatchSize;
+        private final long windowNanos;
+        private final long timeoutNanos;
+        private final ScheduledExecutorService dispatcher;
+        private final ExecutorService sender;
+
+        private final Object lock = new Object();
+        private List<PendingLookup> batch;
+        private boolean closed;
+
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder lookups = new LongAdder();
+
+        /**
+         * @param timeout сколько вызывающий поток ждёт результат своей пачки
+         */
+        public BatchingBookRepository(BookRepository delegate, int maxBatchSize, Duration window, Duration timeout) {
+            this.delegate = delegate;
+            this.maxBatchSize = maxBatchSize;
+            this.windowNanos = window.toNanos();
+            this.timeoutNanos = timeout.toNanos();
+            this.batch = new ArrayList<>(maxBatchSize);
+            this.dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "book-batch-dispatcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.sender = Executors.newFixedThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                    r -> {
+                        Thread thread = new Thread(r, "book-batch-sender-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+            );
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            return delegate.all();
+        }
+
+        @Override
+        public Map<String, BookResult> booksByIds(Collection<String> ids) {
+            return delegate.booksByIds(ids);
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            PendingLookup lookup = new PendingLookup(id);
+            List<PendingLookup> full = null;
+            synchronized (lock) {
+                if (closed) {
+                    throw new IllegalStateException("Batching repository is closed");
+                }
+                List<PendingLookup> current = batch;
+                current.add(lookup);
+                if (current.size() >= maxBatchSize) {
+                    full = current;
+                    batch = new ArrayList<>(maxBatchSize);
+                } else if (current.size() == 1) {
+                    try {
+                        dispatcher.schedule(() -> flush(current), windowNanos, TimeUnit.NANOSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // без запланированной отправки пачку никто не отправит, и все её запросы ждали бы вечно
+                        batch = new ArrayList<>(maxBatchSize);
+                        throw new IllegalStateException("Batching repository is closed", e);
+                    }
+                }
+            }
+            if (full != null) {
+                dispatch(full);
+            }
+            return await(lookup);
+        }
+
+        /**
+         * Сколько в среднем одиночных запросов попадает в одну пачку.
+         */
+        public double averageBatchSize() {
+            long count = batches.sum();
+            return count == 0 ? 0 : (double) lookups.sum() / count;
+        }
+
+        /**
+         * Уже запланированные отправки выполняются, новые запросы отклоняются.
+         */
+        @Override
+        public void close() {
+            synchronized (lock) {
+                closed = true;
+            }
+            dispatcher.shutdown();
+            sender.shutdown();
+        }
+
+        private void flush(List<PendingLookup> expected) {
+            synchronized (lock) {
+                if (batch != expected) {
+                    return; // пачку уже отправил поток, который её заполнил
+                }
+                batch = new ArrayList<>(maxBatchSize);
+            }
+            try {
+                sender.execute(() -> dispatch(expected));
+            } catch (RejectedExecutionException e) {
+                // пул отправки уже закрыт, а пачку, запланированную до close(), всё равно нужно отправить
+                dispatch(expected);
+            }
+        }
+
+        private void dispatch(List<PendingLookup> pending) {
+            batches.increment();
+            lookups.add(pending.size());
+            List<String> ids = new ArrayList<>(pending.size());
+            for (PendingLookup lookup : pending) {
+                ids.add(lookup.id);
+            }
+            try {
+                Map<String, BookResult> results = delegate.booksByIds(ids);
+                for (PendingLookup lookup : pending) {
+                    BookResult result = results.get(lookup.id);
+                    lookup.result.complete(result == null ? BookResult.notFound() : result);
+                }
+            } catch (RuntimeException | Error e) {
+                for (PendingLookup lookup : pending) {
+                    lookup.result.completeExceptionally(e);
+                }
+            }
+        }
+
+        private String await(PendingLookup lookup) throws BookRepositoryException {
+            BookResult result;
+            try {
+                result = lookup.result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                throw new BookRepositoryException(
+                        "Timeout when wait for book by " + lookup.id,
+                        "Error when get book, please try later",
+                        e
+                );
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookRepositoryException(
+                        "Interrupted when wait for book by " + lookup.id,
+                        "Error when get book, please try later",
+                        e
+                );
+            } catch (ExecutionException e) {
+                // ошибка программы - не повод уходить во второе хранилище
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new BookRepositoryException(
+                        "Error when get book by " + lookup.id,
+                        "Error when get book, please try later",
+                        e.getCause()
+                );
+            }
+            if (result.isFailed()) {
+                throw new BookRepositoryException(
+                        "Error when get book by " + lookup.id,
+                        result.error().getClientMessage(),
+                        result.error()
+                );
+            }
+            if (!result.isFound()) {
+                throw new NoSuchElementException("No value present");
+            }
+            return result.book();
+        }
+
+        private static class PendingLookup {
+            private final String id;
+            private final CompletableFuture<BookResult> result = new CompletableFuture<>();
+
+            PendingLookup(String id) {
+                this.id = id;
+            }
+        }
+    }
+
+    /**
+     * Хранилище в памяти вместо БД: каждый вызов - это один "поход" в БД с заданной задержкой.
+     */
+    private static class InMemoryBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final long latencyNanos;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        InMemoryBookRepository(Map<String, String> books, Duration latency) {
+            this.books = new LinkedHashMap<>(books);
+            this.latencyNanos = latency.toNanos();
+        }
+
+        @Override
+        public List<String> all() {
+            roundTrip();
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public String bookById(String id) {
+            roundTrip();
+            String book = books.get(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present");
+            }
+            return book;
+        }
+
+        @Override
+        public Map<String, BookResult> booksByIds(Collection<String> ids) {
+            roundTrip();
+            Map<String, BookResult> results = new LinkedHashMap<>();
+            for (String id : ids) {
+                String book = books.get(id);
+                results.put(id, book == null ? BookResult.notFound() : BookResult.found(book));
+            }
+            return results;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        private void roundTrip() {
+            calls.incrementAndGet();
+            if (latencyNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(latencyNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
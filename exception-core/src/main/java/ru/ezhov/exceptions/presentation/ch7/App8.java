@@ -0,0 +1,374 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Хеджированные запросы.
+ * <p>
+ * BookService обращается к хранилищу второго уровня только после того, как основное хранилище выбросило исключение.
+ * Но хранилище может не падать, а просто медленно отвечать. Тогда исключения нет, запасное хранилище
+ * не используется, и время ответа 99% запросов (p99) определяет самый медленный ответ основного хранилища.
+ * <p>
+ * Хеджирование: если основное хранилище не ответило за некоторое время, параллельно отправляем запрос
+ * во второе хранилище и берём тот ответ, который придёт первым, а второй запрос отменяем.
+ * Время ожидания можно задать явно или вычислять по перцентилю времени ответа основного хранилища.
+ * <p>
+ * Контракт сервиса не меняется: BookServiceException выбрасывается только если ошибкой завершились оба запроса,
+ * причиной будет ошибка второго хранилища, а ошибка основного добавлена как suppressed.
+ * Если основное хранилище упало раньше, чем истекло ожидание, второе вызывается сразу, как и раньше.
+ *
+ * @see HedgingBookService
+ * @see HedgeDelay
+ * @see App9
+ */
+public class App8 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+
+        // основное хранилище обычно отвечает за 1 мс, но в 5% случаев "задумывается" на 100 мс
+        BookRepository primary = new LatencyBookRepository(books, 1, 100, 0.05);
+        BookRepository secondary = new LatencyBookRepository(books, 5, 5, 0);
+
+        try (HedgingBookService withoutHedging = new HedgingBookService(primary, secondary, HedgeDelay.never());
+             HedgingBookService fixed = new HedgingBookService(primary, secondary, HedgeDelay.fixed(Duration.ofMillis(10)));
+             HedgingBookService adaptive = new HedgingBookService(primary, secondary,
+                     HedgeDelay.percentile(0.9, 128, Duration.ofMillis(2), Duration.ofMillis(20)))) {
+            System.out.println(measure("without hedging", withoutHedging));
+            System.out.println(measure("fixed 10 ms", fixed));
+            System.out.println(measure("adaptive p90", adaptive));
+            System.out.println(adaptive.bookById("2"));
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        }
+    }
+
+    private static String measure(String name, HedgingBookService service) throws BookServiceException {
+        int requests = 500;
+        long[] latencies = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            service.bookById("1");
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return String.format("%-16s p50=%5.1f ms  p99=%5.1f ms  hedged=%d",
+                name,
+                latencies[requests / 2] / 1e6,
+                latencies[requests * 99 / 100] / 1e6,
+                service.hedgedRequests());
+    }
+
+    /**
+     * Сервис с хеджированием запросов к хранилищам.
+     * <p>
+     * Запросы выполняются в пуле потоков сервиса. Проигравший запрос отменяется через Future.cancel(true),
+     * то есть его поток получает interrupt. Хранилище, которое не реагирует на interrupt,
+     * доработает до конца, но его результат будет проигнорирован.
+     */
+    private static class HedgingBookService implements AutoCloseable {
+        private final BookRepository primaryBookRepository;
+        private final BookRepository secondaryBookRepository;
+        private final HedgeDelay hedgeDelay;
+        private final ExecutorService executor;
+        private final AtomicLong hedgedRequests = new AtomicLong();
+
+        public HedgingBookService(
+                BookRepository primaryBookRepository,
+                BookRepository secondaryBookRepository,
+                HedgeDelay hedgeDelay
+        ) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.secondaryBookRepository = secondaryBookRepository;
+            this.hedgeDelay = hedgeDelay;
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "book-service-hedge-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        List<String> all() throws BookServiceException {
+            return hedged(BookRepository::all, "Error when get books", "Error when get books, please try later");
+        }
+
+        String bookById(String id) throws BookServiceException {
+            return hedged(
+                    repository -> repository.bookById(id),
+                    "Error when get book by " + id,
+                    "Error when get book, please try later"
+            );
+        }
+
+        long hedgedRequests() {
+            return hedgedRequests.get();
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+
+        private <T> T hedged(RepositoryCall<T> call, String message, String clientMessage) throws BookServiceException {
+            CompletionService<T> race = new ExecutorCompletionService<>(executor);
+            long primaryStart = System.nanoTime();
+            AtomicBoolean primarySampled = new AtomicBoolean();
+            Future<T> primary = race.submit(timed(call, primaryStart, primarySampled));
+            Future<T> secondary = null;
+            BookRepositoryException primaryError = null;
+            try {
+                Future<T> completed = race.poll(hedgeDelay.delayNanos(), TimeUnit.NANOSECONDS);
+                if (completed == null) {
+                    hedgedRequests.incrementAndGet();
+                } else {
+                    try {
+                        return completed.get();
+                    } catch (ExecutionException e) {
+                        primaryError = repositoryError(e);
+                    }
+                }
+                secondary = race.submit(() -> call.apply(secondaryBookRepository));
+
+                int running = primaryError == null ? 2 : 1;
+                BookRepositoryException secondaryError = null;
+                while (running > 0) {
+                    Future<T> next = race.take();
+                    running--;
+                    try {
+                        return next.get();
+                    } catch (ExecutionException e) {
+                        if (next == primary) {
+                            primaryError = repositoryError(e);
+                        } else {
+                            secondaryError = repositoryError(e);
+                        }
+                    }
+                }
+                BookServiceException error = new BookServiceException(message, clientMessage, secondaryError);
+                error.addSuppressed(primaryError);
+                throw error;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookServiceException(message, clientMessage, e);
+            } finally {
+                if (primary.cancel(true)) {
+                    sample(primaryStart, primarySampled);
+                }
+                if (secondary != null) {
+                    secondary.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * Время ответов основного хранилища - это выборка для адаптивной задержки.
+         * <p>
+         * Медленные запросы чаще всего проигрывают второму хранилищу и отменяются. Если записывать только
+         * завершённые, выборка состоит из быстрых ответов, перцентиль занижается, и хеджирование срабатывает всё чаще.
+         * Поэтому для отменённого запроса записывается время до отмены - нижняя граница его настоящего времени.
+         * Каждый запрос записывается один раз: тем, кто успел первым.
+         */
+        private <T> Callable<T> timed(RepositoryCall<T> call, long start, AtomicBoolean sampled) {
+            return () -> {
+                T result = call.apply(primaryBookRepository);
+                sample(start, sampled);
+                return result;
+            };
+        }
+
+        private void sample(long start, AtomicBoolean sampled) {
+            if (sampled.compareAndSet(false, true)) {
+                hedgeDelay.record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Непроверяемые исключения пробрасываются как есть, так же как и без хеджирования.
+         */
+        private static BookRepositoryException repositoryError(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BookRepositoryException) {
+                return (BookRepositoryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    interface RepositoryCall<T> {
+        T apply(BookRepository repository) throws BookRepositoryException;
+    }
+
+    /**
+     * Через сколько отправлять запрос во второе хранилище.
+     */
+    interface HedgeDelay {
+        long delayNanos();
+
+        default void record(long latencyNanos) {
+        }
+
+        static HedgeDelay never() {
+            return () -> Long.MAX_VALUE;
+        }
+
+        static HedgeDelay fixed(Duration delay) {
+            long nanos = delay.toNanos();
+            return () -> nanos;
+        }
+
+        static HedgeDelay percentile(double percentile, int window, Duration min, Duration max) {
+            return new PercentileHedgeDelay(percentile, window, min.toNanos(), max.toNanos());
+        }
+    }
+
+    /**
+     * Задержка равна перцентилю времени ответа основного хранилища на последних window запросах.
+     * <p>
+     * Запись - это одна запись в кольцевой буфер. Перцентиль пересчитывается раз в window / 4 записей
+     * в потоке, который сделал запись, а читатели берут уже посчитанное значение.
+     * Пока выборка мала, используется max.
+     */
+    private static class PercentileHedgeDelay implements HedgeDelay {
+        private final double percentile;
+        private final long minNanos;
+        private final long maxNanos;
+        private final AtomicLongArray samples;
+        private final AtomicLong recorded = new AtomicLong();
+        private final int recalculateEvery;
+        private volatile long delayNanos;
+
+        PercentileHedgeDelay(double percentile, int window, long minNanos, long maxNanos) {
+            this.percentile = percentile;
+            this.minNanos = minNanos;
+            this.maxNanos = maxNanos;
+            this.samples = new AtomicLongArray(window);
+            this.recalculateEvery = Math.max(1, window / 4);
+            this.delayNanos = maxNanos;
+        }
+
+        @Override
+        public long delayNanos() {
+            return delayNanos;
+        }
+
+        @Override
+        public void record(long latencyNanos) {
+            long count = recorded.incrementAndGet();
+            samples.set((int) ((count - 1) % samples.length()), latencyNanos);
+            if (count >= samples.length() && count % recalculateEvery == 0) {
+                long[] sorted = new long[samples.length()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = samples.get(i);
+                }
+                Arrays.sort(sorted);
+                long value = sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+                delayNanos = Math.max(minNanos, Math.min(maxNanos, value));
+            }
+        }
+    }
+
+    /**
+     * Хранилище в памяти с задержкой ответа: обычно fastMillis, с вероятностью slowRate - slowMillis.
+     */
+    private static class LatencyBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final long fastMillis;
+        private final long slowMillis;
+        private final double slowRate;
+
+        LatencyBookRepository(Map<String, String> books, long fastMillis, long slowMillis, double slowRate) {
+            this.books = new LinkedHashMap<>(books);
+            this.fastMillis = fastMillis;
+            this.slowMillis = slowMillis;
+            this.slowRate = slowRate;
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            pause("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            pause("Error when get book by " + id);
+            String book = books.get(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present");
+            }
+            return book;
+        }
+
+        private void pause(String message) throws BookRepositoryException {
+            long millis = ThreadLocalRandom.current().nextDouble() < slowRate ? slowMillis : fastMillis;
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BookRepositoryException(message, "Error when get book, please try later", e);
+            }
+        }
+    }
+}
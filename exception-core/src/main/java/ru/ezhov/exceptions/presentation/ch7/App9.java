@@ -0,0 +1,422 @@
+package ru.ezhov.exceptions.presentation.ch7;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Автоматический выключатель (circuit breaker).
+ * <p>
+ * Когда основное хранилище лежит, каждый вызов сервиса всё равно платит за попытку соединения,
+ * SQLException с полным стеком, обёртку в BookRepositoryException и только потом идёт во второе хранилище.
+ * <p>
+ * Выключатель следит за последними вызовами хранилища. Если доля ошибок и медленных ответов превысила порог,
+ * выключатель размыкается: сервис сразу идёт во второе хранилище, не вызывая основное
+ * и не создавая ни одного исключения. Через заданное время выключатель пропускает несколько пробных вызовов
+ * и, если они успешны, замыкается обратно.
+ * <p>
+ * Выключатель - это не исключение и не обёртка над хранилищем, а обычный объект, у которого сервис
+ * спрашивает разрешение на вызов. Поэтому "хранилище недоступно" становится значением, а не исключением.
+ * <p>
+ * Смена состояний доступна через CircuitBreakerListener, например, для логов и метрик.
+ *
+ * @see CircuitBreaker
+ * @see BookService
+ * @see App10
+ */
+public class App9 {
+    interface BookRepository {
+        List<String> all() throws BookRepositoryException;
+
+        String bookById(String id) throws BookRepositoryException;
+    }
+
+    private static class ClientException extends Exception {
+        private final String clientMessage;
+
+        public ClientException(String message, String clientMessage, Throwable cause) {
+            super(message, cause);
+            this.clientMessage = clientMessage;
+        }
+
+        public String getClientMessage() {
+            return clientMessage;
+        }
+    }
+
+    private static class BookRepositoryException extends ClientException {
+        public BookRepositoryException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    private static class BookServiceException extends ClientException {
+        public BookServiceException(String message, String clientMessage, Throwable cause) {
+            super(message, clientMessage, cause);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> books = new LinkedHashMap<>();
+        books.put("1", "Book 1");
+        books.put("2", "Book 2");
+
+        CircuitBreakerListener log = (name, from, to) ->
+                System.out.println("Circuit breaker '" + name + "': " + from + " -> " + to);
+        CircuitBreaker primaryCircuitBreaker =
+                new CircuitBreaker("primary", 20, 10, 0.5, Duration.ofMillis(50), Duration.ofMillis(200), 3);
+        CircuitBreaker secondaryCircuitBreaker =
+                new CircuitBreaker("secondary", 20, 10, 0.5, Duration.ofMillis(50), Duration.ofMillis(200), 3);
+        primaryCircuitBreaker.addListener(log);
+        secondaryCircuitBreaker.addListener(log);
+
+        FlakyBookRepository primary = new FlakyBookRepository(books);
+        BookService service = new BookService(
+                primary,
+                primaryCircuitBreaker,
+                new FlakyBookRepository(books),
+                secondaryCircuitBreaker
+        );
+
+        try {
+            primary.down(true);
+            for (int i = 0; i < 1000; i++) {
+                service.bookById("1");
+            }
+            System.out.println("Requests: 1000, calls to failed primary: " + primary.calls());
+
+            primary.down(false);
+            Thread.sleep(250);
+            for (int i = 0; i < 10; i++) {
+                service.bookById("2");
+            }
+            System.out.println(service.all());
+        } catch (BookServiceException ex) {
+            ex.printStackTrace();
+            System.err.println(ex.getClientMessage());
+        } catch (Exception ex) {
+            System.err.println("An unexpected error occurred when get book");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Если выключатель хранилища разомкнут, хранилище пропускается без единого исключения.
+     * Исключение создаётся, только если сервису нечего вернуть.
+     */
+    private static class BookService {
+        private final BookRepository primaryBookRepository;
+        private final CircuitBreaker primaryCircuitBreaker;
+        private final BookRepository secondaryBookRepository;
+        private final CircuitBreaker secondaryCircuitBreaker;
+
+        public BookService(
+                BookRepository primaryBookRepository,
+                CircuitBreaker primaryCircuitBreaker,
+                BookRepository secondaryBookRepository,
+                CircuitBreaker secondaryCircuitBreaker
+        ) {
+            this.primaryBookRepository = primaryBookRepository;
+            this.primaryCircuitBreaker = primaryCircuitBreaker;
+            this.secondaryBookRepository = secondaryBookRepository;
+            this.secondaryCircuitBreaker = secondaryCircuitBreaker;
+        }
+
+        List<String> all() throws BookServiceException {
+            return call(BookRepository::all, "Error when get books", "Error when get books, please try later");
+        }
+
+        String bookById(String id) throws BookServiceException {
+            return call(
+                    repository -> repository.bookById(id),
+                    "Error when get book by " + id,
+                    "Error when get book, please try later"
+            );
+        }
+
+        private <T> T call(RepositoryCall<T> call, String message, String clientMessage) throws BookServiceException {
+            BookRepositoryException primaryError = null;
+            CircuitBreaker.Phase primaryPhase = primaryCircuitBreaker.tryAcquirePermission();
+            if (primaryPhase != null) {
+                try {
+                    return primaryCircuitBreaker.execute(primaryPhase, primaryBookRepository, call);
+                } catch (BookRepositoryException ex) {
+                    primaryError = ex;
+                }
+            }
+            CircuitBreaker.Phase secondaryPhase = secondaryCircuitBreaker.tryAcquirePermission();
+            if (secondaryPhase != null) {
+                try {
+                    return secondaryCircuitBreaker.execute(secondaryPhase, secondaryBookRepository, call);
+                } catch (BookRepositoryException ex) {
+                    throw new BookServiceException(message, clientMessage, ex);
+                }
+            }
+            throw new BookServiceException(message + ": all repositories are unavailable", clientMessage, primaryError);
+        }
+    }
+
+    interface RepositoryCall<T> {
+        T apply(BookRepository repository) throws BookRepositoryException;
+    }
+
+    interface CircuitBreakerListener {
+        void onStateChange(String name, CircuitBreaker.State from, CircuitBreaker.State to);
+    }
+
+    /**
+     * Выключатель со скользящим окном последних windowSize вызовов.
+     * <p>
+     * Вызов считается неудачным, если хранилище выбросило BookRepositoryException или ответило дольше slowCallThreshold.
+     * Непроверяемые исключения означают, что хранилище ответило, и считаются удачным вызовом.
+     * <p>
+     * CLOSED - вызовы разрешены, окно заполняется. Как только в окне не меньше minimumCalls вызовов
+     * и доля неудачных не меньше failureRateThreshold, выключатель переходит в OPEN.
+     * <p>
+     * OPEN - вызовы запрещены. Спустя openDuration первый же запрос переводит выключатель в HALF_OPEN.
+     * <p>
+     * HALF_OPEN - разрешено halfOpenProbes пробных вызовов. Если все успешны - CLOSED, если хоть один неудачный - OPEN.
+     * <p>
+     * Каждый переход устанавливает через CAS новый объект Phase: состояние вместе с временем размыкания
+     * и счётчиками проб. Поэтому время размыкания записывает только поток, который выиграл переход,
+     * а вызов помечается фазой, в которой он был разрешён. Результат вызова, который завершился уже в другой фазе
+     * (например, разрешённого в CLOSED и закончившегося в HALF_OPEN), не учитывается: он не проба и не относится к новому окну.
+     */
+    private static class CircuitBreaker {
+        enum State {
+            CLOSED, OPEN, HALF_OPEN
+        }
+
+        private final String name;
+        private final int minimumCalls;
+        private final double failureRateThreshold;
+        private final long slowCallThresholdNanos;
+        private final long openDurationNanos;
+        private final int halfOpenProbes;
+
+        private final AtomicReference<Phase> phase = new AtomicReference<>(Phase.closed());
+
+        private final boolean[] window;
+        private int windowPosition;
+        private int windowCalls;
+        private int windowFailures;
+
+        private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<>();
+
+        public CircuitBreaker(
+                String name,
+                int windowSize,
+                int minimumCalls,
+                double failureRateThreshold,
+                Duration slowCallThreshold,
+                Duration openDuration,
+                int halfOpenProbes
+        ) {
+            this.name = name;
+            this.window = new boolean[windowSize];
+            this.minimumCalls = minimumCalls;
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallThresholdNanos = slowCallThreshold.toNanos();
+            this.openDurationNanos = openDuration.toNanos();
+            this.halfOpenProbes = halfOpenProbes;
+        }
+
+        public void addListener(CircuitBreakerListener listener) {
+            listeners.add(listener);
+        }
+
+        public State state() {
+            return phase.get().state;
+        }
+
+        /**
+         * Без конкуренции это одно чтение volatile поля в состоянии CLOSED.
+         *
+         * @return фаза, в которой разрешён вызов, или null, если вызов запрещён
+         */
+        public Phase tryAcquirePermission() {
+            while (true) {
+                Phase current = phase.get();
+                switch (current.state) {
+                    case CLOSED:
+                        return current;
+                    case OPEN:
+                        if (System.nanoTime() - current.openedAt < openDurationNanos) {
+                            return null;
+                        }
+                        transition(current, Phase.halfOpen(current.openedAt, halfOpenProbes));
+                        break;
+                    case HALF_OPEN:
+                        int left = current.probesLeft.get();
+                        if (left <= 0) {
+                            return null;
+                        }
+                        if (current.probesLeft.compareAndSet(left, left - 1)) {
+                            return current;
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown state " + current.state);
+                }
+            }
+        }
+
+        /**
+         * Вызывается только с фазой, которую вернул tryAcquirePermission.
+         */
+        public <T> T execute(Phase admitted, BookRepository repository, RepositoryCall<T> call) throws BookRepositoryException {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                T result = call.apply(repository);
+                failed = System.nanoTime() - start > slowCallThresholdNanos;
+                return result;
+            } catch (RuntimeException e) {
+                failed = false;
+                throw e;
+            } finally {
+                record(admitted, failed);
+            }
+        }
+
+        private void record(Phase admitted, boolean failed) {
+            if (phase.get() != admitted) {
+                return; // фаза сменилась, пока шёл вызов
+            }
+            if (admitted.state == State.HALF_OPEN) {
+                if (failed) {
+                    open(admitted);
+                } else if (admitted.probesSucceeded.incrementAndGet() >= halfOpenProbes
+                        && transition(admitted, Phase.closed())) {
+                    resetWindow();
+                }
+                return;
+            }
+            boolean trip;
+            synchronized (window) {
+                if (windowCalls == window.length) {
+                    if (window[windowPosition]) {
+                        windowFailures--;
+                    }
+                } else {
+                    windowCalls++;
+                }
+                window[windowPosition] = failed;
+                if (failed) {
+                    windowFailures++;
+                }
+                windowPosition = (windowPosition + 1) % window.length;
+                trip = windowCalls >= minimumCalls && (double) windowFailures / windowCalls >= failureRateThreshold;
+            }
+            if (trip) {
+                open(admitted);
+            }
+        }
+
+        private void open(Phase from) {
+            transition(from, Phase.open(System.nanoTime()));
+        }
+
+        private void resetWindow() {
+            synchronized (window) {
+                windowPosition = 0;
+                windowCalls = 0;
+                windowFailures = 0;
+            }
+        }
+
+        private boolean transition(Phase from, Phase to) {
+            if (!phase.compareAndSet(from, to)) {
+                return false;
+            }
+            for (CircuitBreakerListener listener : listeners) {
+                listener.onStateChange(name, from.state, to.state);
+            }
+            return true;
+        }
+
+        /**
+         * Состояние выключателя и данные, которые относятся только к нему. Объект не переиспользуется.
+         */
+        static final class Phase {
+            private final State state;
+            private final long openedAt;
+            private final AtomicInteger probesLeft;
+            private final AtomicInteger probesSucceeded = new AtomicInteger();
+
+            private Phase(State state, long openedAt, int probes) {
+                this.state = state;
+                this.openedAt = openedAt;
+                this.probesLeft = new AtomicInteger(probes);
+            }
+
+            static Phase closed() {
+                return new Phase(State.CLOSED, 0, 0);
+            }
+
+            static Phase open(long openedAt) {
+                return new Phase(State.OPEN, openedAt, 0);
+            }
+
+            static Phase halfOpen(long openedAt, int probes) {
+                return new Phase(State.HALF_OPEN, openedAt, probes);
+            }
+        }
+    }
+
+    /**
+     * Хранилище в памяти, которое можно "уронить": тогда каждый вызов честно создаёт SQLException
+     * и оборачивает его в BookRepositoryException, как это сделал бы DbBookRepository.
+     */
+    private static class FlakyBookRepository implements BookRepository {
+        private final Map<String, String> books;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean down;
+
+        FlakyBookRepository(Map<String, String> books) {
+            this.books = new LinkedHashMap<>(books);
+        }
+
+        void down(boolean down) {
+            this.down = down;
+        }
+
+        int calls() {
+            return calls.get();
+        }
+
+        @Override
+        public List<String> all() throws BookRepositoryException {
+            check("Error when get books");
+            return new ArrayList<>(books.values());
+        }
+
+        @Override
+        public String bookById(String id) throws BookRepositoryException {
+            check("Error when get book by " + id);
+            String book = books.get(id);
+            if (book == null) {
+                throw new NoSuchElementException("No value present");
+            }
+            return book;
+        }
+
+        private void check(String message) throws BookRepositoryException {
+            if (down) {
+                calls.incrementAndGet();
+                throw new BookRepositoryException(
+                        message,
+                        "Error when get book, please try later",
+                        new SQLException("Connection refused")
+                );
+            }
+        }
+    }
+}